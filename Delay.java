@@ -0,0 +1,391 @@
+// Delay.java
+
+import java.util.Scanner;
+import java.util.SplittableRandom;
+
+/** Delay.java
+ *  Support for fixed or random delays, such as road travel times.
+ *  <p>
+ *  A delay is either a constant or drawn from a distribution.  Sampling
+ *  happens for every vehicle on every road, so each distribution is
+ *  turned into a table when it is read.  Continuous distributions are
+ *  sampled by interpolating in a table of their quantiles, histograms
+ *  by the alias method.  Each random delay draws from its own stream,
+ *  numbered in input order, so results are reproducible.
+ *  <p>
+ *  In the input, a delay is either a number or one of:
+ *  <ul>
+ *  <li>exponential mean
+ *  <li>lognormal mean deviation
+ *  <li>histogram k low high w1 ... wk, where the k weights are for equal
+ *  width bins between low and high
+ *  </ul>
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see PRNG
+ *  @see ScanSupport
+ */
+public abstract class Delay {
+
+    /** Draw one delay.
+     *  @return the delay
+     */
+    public abstract float sample();
+
+    /** Get the smallest delay this can produce.
+     *  @return the lower bound
+     */
+    public abstract float minimum();
+
+    /** Can this delay be negative.
+     *  @return true if it can
+     */
+    public abstract boolean negative();
+
+    /** Get the delay in a form like that used for input.
+     *  @return the textual description
+     */
+    public abstract String toString();
+
+    /** Get ready to draw delays, called before each simulation.
+     *  @param prng where random numbers come from
+     */
+    public void start( PRNG prng ) {
+        // Constant delays need nothing
+    }
+
+    /** Delays that are always the same.
+     */
+    private static class Constant extends Delay {
+        private final float value;
+
+        Constant( float value ) {
+            this.value = value;
+        }
+
+        public float sample() {
+            return value;
+        }
+
+        public float minimum() {
+            return value;
+        }
+
+        public boolean negative() {
+            return value < 0.0F;
+        }
+
+        public String toString() {
+            return Float.toString( value );
+        }
+    }
+
+    /** Continuous delays sampled by their inverse distribution function.
+     *  <p>
+     *  The quantile function is tabulated at CELLS equally spaced points
+     *  and interpolated linearly.  The last cell holds the unbounded upper
+     *  tail, so draws landing there are computed exactly instead.
+     */
+    private static abstract class Tabulated extends Delay {
+        private static final int CELLS = 1024;
+
+        private final int streamNumber;
+        private SplittableRandom stream;
+        private final float[] table = new float[CELLS];
+
+        Tabulated( PRNG prng ) {
+            streamNumber = prng.newStream();
+        }
+
+        public void start( PRNG prng ) {
+            stream = prng.stream( streamNumber );
+        }
+
+        // Fill in the table, called by subclass constructors
+        protected void tabulate() {
+            for (int i = 0; i < CELLS; i++) {
+                table[i] = (float) quantile( (double) i / CELLS );
+            }
+        }
+
+        // The inverse of the distribution function, 0 <= u < 1
+        protected abstract double quantile( double u );
+
+        public float sample() {
+            double u = stream.nextDouble();
+            double x = u * CELLS;
+            int i = (int) x;
+            if (i >= CELLS - 1) return (float) quantile( u );
+            float f = (float) (x - i);
+            return table[i] + f * (table[i + 1] - table[i]);
+        }
+
+        public float minimum() {
+            return 0.0F;
+        }
+
+        public boolean negative() {
+            return false;
+        }
+    }
+
+    /** Exponentially distributed delays.
+     */
+    private static class Exponential extends Tabulated {
+        private final float mean;
+
+        Exponential( PRNG prng, float mean ) {
+            super( prng );
+            this.mean = mean;
+            tabulate();
+        }
+
+        protected double quantile( double u ) {
+            return -mean * Math.log1p( -u );
+        }
+
+        public String toString() {
+            return "exponential " + mean;
+        }
+    }
+
+    /** Lognormally distributed delays, given by their mean and deviation.
+     */
+    private static class LogNormal extends Tabulated {
+        private final float mean;
+        private final float deviation;
+        // Parameters of the underlying normal distribution
+        private final double mu;
+        private final double sigma;
+
+        LogNormal( PRNG prng, float mean, float deviation ) {
+            super( prng );
+            this.mean = mean;
+            this.deviation = deviation;
+            double ratio = (double) deviation / mean;
+            double variance = Math.log1p( ratio * ratio );
+            mu = Math.log( mean ) - variance / 2;
+            sigma = Math.sqrt( variance );
+            tabulate();
+        }
+
+        protected double quantile( double u ) {
+            if (u <= 0.0) return 0.0;
+            return Math.exp( mu + sigma * normalQuantile( u ) );
+        }
+
+        public String toString() {
+            return "lognormal " + mean + " " + deviation;
+        }
+    }
+
+    /** Delays drawn from a histogram, uniformly within each bin.
+     *  <p>
+     *  Bins are chosen by Vose's alias method: one cell is picked at
+     *  random, then either its own bin or its alias, in constant time.
+     */
+    private static class Histogram extends Delay {
+        private final int streamNumber;
+        private SplittableRandom stream;
+        private final float low;
+        private final float high;
+        private final float[] weights;
+        private final float width;
+        // Probability of keeping each cell's own bin, and its alias
+        private final double[] keep;
+        private final int[] alias;
+
+        Histogram( PRNG prng, float low, float high, float[] weights ) {
+            streamNumber = prng.newStream();
+            this.low = low;
+            this.high = high;
+            this.weights = weights;
+            int k = weights.length;
+            width = (high - low) / k;
+            keep = new double[k];
+            alias = new int[k];
+
+            double total = 0.0;
+            for (float w: weights) total = total + w;
+            // Scaled weights, average 1, split into small and large
+            double[] scaled = new double[k];
+            int[] small = new int[k];
+            int[] large = new int[k];
+            int smalls = 0;
+            int larges = 0;
+            for (int i = 0; i < k; i++) {
+                scaled[i] = weights[i] * k / total;
+                if (scaled[i] < 1.0) {
+                    small[smalls++] = i;
+                } else {
+                    large[larges++] = i;
+                }
+            }
+            // Fill each small cell up to 1 from some large bin
+            while ((smalls > 0) && (larges > 0)) {
+                int s = small[--smalls];
+                int l = large[--larges];
+                keep[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = scaled[l] + scaled[s] - 1.0;
+                if (scaled[l] < 1.0) {
+                    small[smalls++] = l;
+                } else {
+                    large[larges++] = l;
+                }
+            }
+            // Whatever is left is full, up to rounding error
+            while (larges > 0) keep[large[--larges]] = 1.0;
+            while (smalls > 0) keep[small[--smalls]] = 1.0;
+        }
+
+        public void start( PRNG prng ) {
+            stream = prng.stream( streamNumber );
+        }
+
+        public float sample() {
+            double x = stream.nextDouble() * keep.length;
+            int i = (int) x;
+            int bin = ((x - i) < keep[i]) ? i : alias[i];
+            return low + width * (bin + (float) stream.nextDouble());
+        }
+
+        public float minimum() {
+            return low;
+        }
+
+        public boolean negative() {
+            return low < 0.0F;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder( "histogram " );
+            s.append( weights.length ).append( ' ' )
+             .append( low ).append( ' ' ).append( high );
+            for (float w: weights) s.append( ' ' ).append( w );
+            return s.toString();
+        }
+    }
+
+    /** Inverse of the standard normal distribution function.
+     *  This is Acklam's rational approximation, with relative error
+     *  below 1.2e-9, more than enough to fill a table of floats.
+     *  @param p the probability, 0 &lt; p &lt; 1
+     *  @return x such that the probability of a normal variate below x is p
+     */
+    private static double normalQuantile( double p ) {
+        final double[] a = {
+            -3.969683028665376e+01,  2.209460984245205e+02,
+            -2.759285104469687e+02,  1.383577518672690e+02,
+            -3.066479806614716e+01,  2.506628277459239e+00
+        };
+        final double[] b = {
+            -5.447609879822406e+01,  1.615858368580409e+02,
+            -1.556989798598866e+02,  6.680131188771972e+01,
+            -1.328068155288572e+01
+        };
+        final double[] c = {
+            -7.784894002430293e-03, -3.223964580411365e-01,
+            -2.400758277161838e+00, -2.549732539343734e+00,
+             4.374664141464968e+00,  2.938163982698783e+00
+        };
+        final double[] d = {
+             7.784695709041462e-03,  3.224671290700398e-01,
+             2.445134137142996e+00,  3.754408661907416e+00
+        };
+        final double low = 0.02425;
+        if (p < low) {
+            double q = Math.sqrt( -2 * Math.log( p ) );
+            return (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5])
+                 / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+        } else if (p > 1 - low) {
+            double q = Math.sqrt( -2 * Math.log1p( -p ) );
+            return -(((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5])
+                 / ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+        } else {
+            double q = p - 0.5;
+            double r = q * q;
+            return (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5])*q
+                 / (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+        }
+    }
+
+    // Get the next positive float, warn and give up if it isn't one
+    private static float positive( Scanner sc, ScanSupport.Message m )
+            throws ScanSupport.NotFound {
+        float value = ScanSupport.nextFloat( sc, m );
+        if (!(value > 0.0F)) {
+            Errors.warn( "Positive number expected: " + m.myString() );
+            sc.nextLine();
+            throw new ScanSupport.NotFound();
+        }
+        return value;
+    }
+
+    /** Scan a delay, either a number or a distribution.
+     *  @param sc the scanner from which the delay is read
+     *  @param prng numbers the streams of random delays
+     *  @param m gives the context part of error messages
+     *  @return the delay
+     *  @throws ScanSupport.NotFound if there was no acceptable delay
+     */
+    public static Delay scan( Scanner sc, PRNG prng, ScanSupport.Message m )
+            throws ScanSupport.NotFound {
+        String kind = ScanSupport.nextWordIfAny( sc );
+        if ("".equals( kind )) {
+            return new Constant( ScanSupport.nextFloat( sc, m ) );
+        } else if ("exponential".equals( kind )) {
+            return new Exponential( prng, positive(
+                sc, ()-> m.myString() + " exponential ???"
+            ) );
+        } else if ("lognormal".equals( kind )) {
+            final float mean = positive(
+                sc, ()-> m.myString() + " lognormal ???"
+            );
+            return new LogNormal( prng, mean, positive(
+                sc, ()-> m.myString() + " lognormal " + mean + " ???"
+            ) );
+        } else if ("histogram".equals( kind )) {
+            final int k = ScanSupport.nextInt(
+                sc, ()-> m.myString() + " histogram ???"
+            );
+            if (k <= 0) {
+                Errors.warn( "Histogram needs bins: " + m.myString() );
+                sc.nextLine();
+                throw new ScanSupport.NotFound();
+            }
+            final float low = ScanSupport.nextFloat(
+                sc, ()-> m.myString() + " histogram " + k + " ???"
+            );
+            final float high = ScanSupport.nextFloat(
+                sc, ()-> m.myString() + " histogram " + k + " " + low + " ???"
+            );
+            if (!(high > low)) {
+                Errors.warn( "Histogram range is empty: " + m.myString() );
+                sc.nextLine();
+                throw new ScanSupport.NotFound();
+            }
+            float[] weights = new float[k];
+            float total = 0.0F;
+            for (int i = 0; i < k; i++) {
+                weights[i] = ScanSupport.nextFloat(
+                    sc, ()-> m.myString() + " histogram weight ???"
+                );
+                if (weights[i] < 0.0F) {
+                    Errors.warn( "Negative histogram weight: " + m.myString() );
+                }
+                total = total + weights[i];
+            }
+            if (!(total > 0.0F)) {
+                Errors.warn( "Histogram has no weight: " + m.myString() );
+                sc.nextLine();
+                throw new ScanSupport.NotFound();
+            }
+            return new Histogram( prng, low, high, weights );
+        } else {
+            Errors.warn( "Unknown distribution " + kind + ": " + m.myString() );
+            sc.nextLine();
+            throw new ScanSupport.NotFound();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Demand.java
+
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+
+/** Demand.java
+ *  Demand profiles give the rate at which sources produce vehicles.
+ *  <p>
+ *  A profile is a piecewise constant rate that repeats with some period,
+ *  for example a day.  Vehicles are produced either deterministically or
+ *  as a Poisson process.  Both are generated one at a time by inverting
+ *  the integrated rate: each vehicle needs one unit of integrated rate in
+ *  the deterministic case, or an exponentially distributed amount in the
+ *  Poisson case.  Because the rate is piecewise constant, this is exact,
+ *  and unlike thinning no candidate departures are ever rejected.
+ *  <p>
+ *  In the input, a profile is described as
+ *  <pre>
+ *  profile name kind period k start1 rate1 ... startk ratek
+ *  </pre>
+ *  where kind is poisson or deterministic, and each rate holds from its
+ *  start time until the next one.  The first start must be zero and the
+ *  starts must increase and be less than the period.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Source
+ */
+public class Demand {
+
+    /** Constructors may throw this when an error prevents construction.
+     */
+    public static class ConstructorFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Name of this profile.
+     */
+    public final String name;
+
+    // Is this a Poisson process, as opposed to deterministic
+    private final boolean poisson;
+    // The profile repeats with this period
+    private final float period;
+    // Start times and rates of each piece of the profile
+    private final float[] starts;
+    private final float[] rates;
+
+    /** Construct a new profile by scanning its description.
+     *  @param sc the scanner from which the input is read
+     *  @throws ConstructorFailure when it cannot construct a profile
+     */
+    Demand( Scanner sc ) throws ConstructorFailure {
+        try {
+            name = ScanSupport.nextName( sc, ()-> "Profile ???" );
+            if (Character.isDigit( name.charAt( 0 ) )) {
+                // Sources could not tell this name from a start time
+                Errors.warn( "Profile name starts with a digit: " + name );
+                sc.nextLine();
+                throw new ConstructorFailure();
+            }
+            String kind = ScanSupport.nextName(
+                sc, ()-> "Profile " + name + " ???"
+            );
+            if ("poisson".equals( kind )) {
+                poisson = true;
+            } else if ("deterministic".equals( kind )) {
+                poisson = false;
+            } else {
+                Errors.warn( "Profile " + name + " " + kind
+                    + ": unknown kind"
+                );
+                sc.nextLine();
+                throw new ConstructorFailure();
+            }
+            period = ScanSupport.nextFloat(
+                sc, ()-> "Profile " + name + " " + kind + " ???"
+            );
+            int k = ScanSupport.nextInt(
+                sc, ()-> "Profile " + name + " " + kind + " " + period + " ???"
+            );
+            if (k <= 0) {
+                Errors.warn( "Profile needs rates: Profile " + name );
+                sc.nextLine();
+                throw new ConstructorFailure();
+            }
+            starts = new float[k];
+            rates = new float[k];
+            for (int i = 0; i < k; i++) {
+                starts[i] = ScanSupport.nextFloat(
+                    sc, ()-> "Profile " + name + " start time ???"
+                );
+                rates[i] = ScanSupport.nextFloat(
+                    sc, ()-> "Profile " + name + " rate ???"
+                );
+            }
+        } catch (ScanSupport.NotFound e) {
+            throw new ConstructorFailure();
+        }
+        ScanSupport.lineEnd( sc, ()-> this.toString() );
+
+        // Check sanity of the fields
+        if (!(period > 0.0F)) Errors.warn(
+            "Nonpositive period: " + this.toString()
+        );
+        if (starts[0] != 0.0F) Errors.warn(
+            "First rate must start at zero: " + this.toString()
+        );
+        float total = 0.0F;
+        for (int i = 0; i < starts.length; i++) {
+            if ((i > 0) && !(starts[i] > starts[i - 1])) Errors.warn(
+                "Start times must increase: " + this.toString()
+            );
+            if (!(starts[i] < period)) Errors.warn(
+                "Start time beyond period: " + this.toString()
+            );
+            if (rates[i] < 0.0F) Errors.warn(
+                "Negative rate: " + this.toString()
+            );
+            total = total + rates[i];
+        }
+        if (!(total > 0.0F)) Errors.warn(
+            "Never produces: " + this.toString()
+        );
+    }
+
+    /** Get the profile description in a form like that used for input.
+     *  @return the textual description
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder( "Profile " );
+        s.append( name ).append( poisson ? " poisson " : " deterministic " )
+         .append( period ).append( ' ' ).append( starts.length );
+        for (int i = 0; i < starts.length; i++) {
+            s.append( ' ' ).append( starts[i] ).append( ' ' ).append( rates[i] );
+        }
+        return s.toString();
+    }
+
+    // Simulation methods
+
+    /** Find the time of the next departure.
+     *  @param t the time of the previous departure, or when to start
+     *  @param stream where random numbers come from
+     *  @return the time of the next departure
+     */
+    public float next( float t, SplittableRandom stream ) {
+        // Integrated rate needed before the next departure
+        double work = poisson ? -Math.log1p( -stream.nextDouble() ) : 1.0;
+
+        // Walk through the pieces of the profile from time t
+        double cycle = Math.floor( t / period ) * period;
+        double phase = t - cycle;
+        int i = Arrays.binarySearch( starts, (float) phase );
+        if (i < 0) i = -i - 2;
+        while (true) {
+            double end = (i + 1 < starts.length) ? starts[i + 1] : period;
+            double available = rates[i] * (end - phase);
+            if (available >= work) {
+                return (float) (cycle + phase + work / rates[i]);
+            }
+            work = work - available;
+            phase = end;
+            i = i + 1;
+            if (i == starts.length) {
+                i = 0;
+                phase = 0.0;
+                cycle = cycle + period;
+            }
+        }
+    }
+}
@@ -1,30 +1,95 @@
 // Errors.java
 
+import java.io.PrintStream;
+
 /** Errors.java is an error reporting package.
  *  <p>
  *  This provides a standard prefix and behavior for warnings and fatal
- *  error messages.
+ *  error messages.  Each thread counts its errors and sends its messages
+ *  on its own, so that jobs run by a service in threads of their own
+ *  report separately.
  *  @author Douglas W. Jones
  *  @author Piotr Smietana
  *  @version 2019-03-31
  */
 public class Errors {
-    // Error messages are counted.
-    private static int errorCount = 0;
+
+    // How one thread reports errors
+    private static class State {
+        // Error messages are counted.
+        int errorCount = 0;
+
+        // Where messages go
+        PrintStream messages = System.err;
+
+        // Do fatal errors end the program
+        boolean exitOnFatal = true;
+    }
+
+    // The state of each thread
+    private static final ThreadLocal <State> state
+    = ThreadLocal.withInitial( State::new );
+
+    /** Thrown by fatal errors that do not end the program.
+     */
+    public static class Fatal extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Fatal( String message ) {
+            super( message );
+        }
+    }
+
+    /** Send messages somewhere else.
+     *  @param s where messages go
+     */
+    public static void redirect( PrintStream s ) {
+        state.get().messages = s;
+    }
+
+    /** Make fatal errors throw Fatal instead of ending the program,
+     *  as when running one job of a service.
+     */
+    public static void throwOnFatal() {
+        state.get().exitOnFatal = false;
+    }
+
+    /** Start counting errors from zero again, as when a thread that ran
+     *  one job of a service starts another.
+     */
+    public static void reset() {
+        state.get().errorCount = 0;
+    }
+
+    /** Get where messages go, for reports that go with them.
+     *  @return the stream
+     */
+    public static PrintStream messages() {
+        return state.get().messages;
+    }
 
     /** Allow public read-only access to the count of error messages
      *  @return the count
      */
     public static int count() {
-        return errorCount;
+        return state.get().errorCount;
     }
 
     /** Report nonfatal errors, output a message and return
      *  @param message the message to output
      */
     public static void warn( String message ) {
-        System.err.println( "RoadNetwork: " + message );
-        errorCount = errorCount + 1;
+        State s = state.get();
+        s.messages.println( "RoadNetwork: " + message );
+        s.errorCount = s.errorCount + 1;
+    }
+
+    /** Report diagnostics that do not prevent simulation.
+     *  Notes are output like warnings but are not counted.
+     *  @param message the message to output
+     */
+    public static void note( String message ) {
+        state.get().messages.println( "RoadNetwork: " + message );
     }
 
     /** Report fatal errors, output a message and exit, never to return
@@ -32,6 +97,7 @@ public class Errors {
      */
     public static void fatal( String message ) {
         warn( message );
+        if (!state.get().exitOnFatal) throw new Fatal( message );
         System.exit( 1 );
     }
 }
@@ -2,6 +2,7 @@
 
 import java.util.LinkedList;
 import java.util.Scanner;
+import java.util.SplittableRandom;
 
 /** Intersections pass Vehicles between Roads.
  *  @author Douglas W. Jones
@@ -10,8 +11,9 @@ import java.util.Scanner;
  *  @see Road
  *  @see StopLight
  *  @see NoStop
+ *  @see Remote
  */
-public abstract class Intersection {
+public abstract class Intersection implements Simulator.Entity {
 
     /** Constructors may throw this when an error prevents construction.
      */
@@ -21,6 +23,33 @@ public abstract class Intersection {
      */
     final public String name;
 
+    /** Number of this Intersection, counting from zero in input order.
+     */
+    final public int number;
+
+    /** The simulator in which this Intersection schedules its events.
+     */
+    protected final Simulator sim;
+
+    // Kinds of events in the road network, ranked in the order they are
+    // dispatched when they happen at the same time: vehicles leave
+    // intersections, then vehicles exit roads, then lights change
+
+    /** Vehicles departing from intersections.
+     */
+    public static final Simulator.Kind DEPARTURE
+    = new Simulator.Kind( "departure", 0 );
+
+    /** Vehicles exiting roads.
+     */
+    public static final Simulator.Kind EXIT
+    = new Simulator.Kind( "exit", 1 );
+
+    /** Stoplights changing.
+     */
+    public static final Simulator.Kind LIGHT_CHANGE
+    = new Simulator.Kind( "lightchange", 2 );
+
     /** Set of all roads out of this Intersection.
      */
     public final LinkedList <Road> outgoing = new LinkedList <> ();
@@ -30,18 +59,33 @@ public abstract class Intersection {
     public final LinkedList <Road> incoming = new LinkedList <> ();
 
     /** Constructor used by subclasses to initialize final fields.
+     *  @param net the network this intersection is part of
+     *  @param name sets the name field
+     */
+    protected Intersection( RoadNetwork net, String name ) {
+        this.name = name;
+        this.number = net.numberIntersection();
+        this.sim = net.sim;
+    }
+
+    /** Constructor used for intersections already numbered elsewhere.
+     *  @param sim sets the sim field
      *  @param name sets the name field
+     *  @param number sets the number field
      */
-    protected Intersection( String name ) {
+    protected Intersection( Simulator sim, String name, int number ) {
         this.name = name;
+        this.number = number;
+        this.sim = sim;
     }
 
     /** Factory method to create subclasses of Intersections.
      *  @param sc the scanner to read intersection description from
+     *  @param net the network the intersection is part of
      *  @return either a new intersection or null
      *  @throws ConstructorFailure when the intersection cannot be constructed
      */
-    public static Intersection newIntersection( Scanner sc )
+    public static Intersection newIntersection( Scanner sc, RoadNetwork net )
             throws ConstructorFailure {
         // Get the name
         final String name;
@@ -51,7 +95,7 @@ public abstract class Intersection {
             throw new ConstructorFailure();
         }
         // Check for duplicate definition
-        if (RoadNetwork.findIntersection( name ) != null) {
+        if (net.findIntersection( name ) != null) {
             Errors.warn( "Intersection redefined: " + name );
             sc.nextLine();
             throw new ConstructorFailure();
@@ -67,13 +111,13 @@ public abstract class Intersection {
         }
         // Construct the desired class of intersection and return it
         if ("nostop".equals( intersectionType )) {
-            return new NoStop( sc, name );
+            return new NoStop( sc, net, name );
         } else if ("stoplight".equals( intersectionType )) {
-            return new StopLight( sc, name );
+            return new StopLight( sc, net, name );
         } else if ("source".equals( intersectionType )) {
-            return new Source( sc, name );
+            return new Source( sc, net, name );
         } else if ("sink".equals( intersectionType )) {
-            return new Sink( sc, name );
+            return new Sink( sc, net, name );
         } else {
             Errors.warn( "Intersection " + name + " " + intersectionType
                  + ": unknown type: " );
@@ -89,22 +133,99 @@ public abstract class Intersection {
         return  "Intersection " + name;
     }
 
+    /** Get the number of this intersection.
+     *  @return the number
+     */
+    public int number() {
+        return number;
+    }
+
+    /** Stop giving a direction to a road into this intersection.
+     *  The remaining incoming roads are renumbered, so this must be
+     *  called before start().
+     *  @param r a road that will never carry traffic
+     */
+    void forgetIncoming( Road r ) {
+        incoming.remove( r );
+        int dir = 0;
+        for (Road i: incoming) {
+            i.renumber( dir );
+            dir = dir + 1;
+        }
+    }
+
+    /** Is this intersection simulated by this process.
+     *  @return true unless it belongs to another partition
+     */
+    public boolean isLocal() {
+        return true;
+    }
+
+    /** Get the partition that simulates this intersection.
+     *  @return the partition number
+     */
+    public int owner() {
+        return Partition.self();
+    }
+
+    /** Get a stand-in for this intersection, which another partition
+     *  simulates.
+     *  @param partition the partition that owns this intersection
+     *  @return the stand-in
+     */
+    public Intersection standIn( int partition ) {
+        return new Remote( this, partition );
+    }
+
+    /** Does this intersection produce vehicles.
+     *  @return true if it is a source
+     */
+    public boolean isSource() {
+        return false;
+    }
+
+    /** Does this intersection absorb vehicles.
+     *  @return true if it is a sink
+     */
+    public boolean isSink() {
+        return false;
+    }
+
+    /** Make this intersection follow a demand profile, if it can.
+     *  @param d the demand profile
+     *  @param n how many vehicles it produces
+     *  @return false unless this is a source
+     */
+    boolean follow( Demand d, int n ) {
+        return false;
+    }
+
     // Simulation methods
 
+    /** Set this intersection as it is when a simulation starts, and
+     *  schedule its initial events.
+     *  Called before each simulation after the network has been checked,
+     *  so intersections excluded from the model never schedule anything.
+     */
+    public void start() {
+        // By default, intersections only react to arriving vehicles
+    }
+
     /** Pick an outgoing road from this intersection.
      *  @return the road it picks
      */
     protected Road pickRoad() {
         // Pick a road at random
-        int roadNumber = PRNG.fromZeroTo( outgoing.size() );
+        int roadNumber = sim.prng.fromZeroTo( outgoing.size() );
         return outgoing.get( roadNumber );
     }
 
     /** Simulate a vehicle arriving at this intersection.
      *  @param time a vehicle arrives
      *  @param dir the direction from which a vehicle arrives
+     *  @param v the vehicle
      */
-    public abstract void arrivalEvent( float time, int dir );
+    public abstract void arrivalEvent( float time, int dir, int v );
 
     /** Simulate a vehicle departs from this intersection.
      *  @param time a vehicle departs
@@ -121,20 +242,22 @@ public abstract class Intersection {
 class NoStop extends Intersection {
 
     // Time it takes to traverse the intersection
-    private final float delay;
-    // Count of vehicles in the intersection
-    private int occupants = 0;
+    private final Delay delay;
+    // Vehicles in the intersection, the first one is driving through
+    private Vehicles.Queue occupants;
 
     /** NoStop intersection constructor.
      *  @param sc scanner from which the description is taken
+     *  @param net the network this intersection is part of
      *  @param name of the intersection the caller already scanned
      *  @throws Intersection.ConstructorFailure if the description is faulty
      */
-    NoStop( Scanner sc, String name ) throws Intersection.ConstructorFailure {
-        super( name );
+    NoStop( Scanner sc, RoadNetwork net, String name )
+            throws Intersection.ConstructorFailure {
+        super( net, name );
         try {
-            delay = ScanSupport.nextFloat(
-                sc, ()-> "Floating point delay expected: Intersection "
+            delay = Delay.scan(
+                sc, sim.prng, ()-> "Delay expected: Intersection "
                 + name + " nostop"
             );
         } catch (ScanSupport.NotFound e) {
@@ -152,39 +275,50 @@ class NoStop extends Intersection {
 
     // Simulation methods
 
+    /** Start the simulation of this intersection, with nobody in it.
+     */
+    public void start() {
+        delay.start( sim.prng );
+        occupants = sim.vehicles.newQueue();
+    }
+
+    // Let vehicle v start driving through at time t
+    private void proceed( float t, int v ) {
+        sim.vehicles.proceed( v, t );
+        sim.schedule(
+            new Simulator.Event( t + delay.sample(), DEPARTURE, this ) {
+                void trigger() { departureEvent( time ); }
+            }
+        );
+    }
+
     /** What happens when a vehicle arrives at this NoStop intersection.
      *  @param t the time the vehicle arrives
      *  @param dir the direction it arrives from
+     *  @param v the vehicle
      */
-    public void arrivalEvent( float t, int dir ) {
-        System.out.println(
+    public void arrivalEvent( float t, int dir, int v ) {
+        if (sim.tracing()) sim.output().println(
             "Vehicle arrived at " + this.toString() + " at " + t
         );
+        sim.vehicles.arrive( v, t );
         // If intersection is clear, vehicle continues
-        if (occupants == 0) {
-            Simulator.schedule(
-                new Simulator.Event( t + delay ) {
-                    void trigger() { departureEvent( time ); }
-                }
-            );
+        if (occupants.isEmpty()) {
+            proceed( t, v );
         }
-        occupants = occupants + 1;
+        occupants.add( v );
     }
 
     /** What happens when a vehicle departs from this NoStop intersection.
      *  @param t the time the vehicle departs
      */
     public void departureEvent( float t ) {
-        occupants = occupants - 1;
+        int v = occupants.remove();
         // Send the vehicle onward
-        this.pickRoad().entryEvent( t );
+        this.pickRoad().entryEvent( t, v );
         // if others are queued up, let one of them continue
-        if (occupants > 0) {
-            Simulator.schedule(
-                new Simulator.Event( t + delay ) {
-                    void trigger() { departureEvent( time ); }
-                }
-            );
+        if (!occupants.isEmpty()) {
+            proceed( t, occupants.first() );
         }
     }
 }
@@ -201,23 +335,25 @@ class StopLight extends Intersection {
     private int lightDir = 0;
     // Time it stays green
     private final float lightInterval;
-    // Where vehicles wait (just counts of vehicles)
-    private int[] queues;
+    // Where vehicles wait, one queue per incoming road
+    private Vehicles.Queue[] queues;
     // Time it takes to traverse the intersection
-    private final float delay;
-    // Count of vehicles in the intersection
-    private int occupants = 0;
+    private final Delay delay;
+    // The vehicle in the intersection, if any
+    private int occupant = Vehicles.NONE;
 
     /** StopLight intersection constructor.
      *  @param sc scanner from which the description is taken
+     *  @param net the network this intersection is part of
      *  @param name of the intersection the caller already scanned
      *  @throws Intersection.ConstructorFailure if the description is faulty
      */
-    StopLight( Scanner sc, String name )throws Intersection.ConstructorFailure {
-        super( name );
+    StopLight( Scanner sc, RoadNetwork net, String name )
+            throws Intersection.ConstructorFailure {
+        super( net, name );
         try {
-            delay = ScanSupport.nextFloat(
-                sc, ()->"Floating point delay expected: Intersection "
+            delay = Delay.scan(
+                sc, sim.prng, ()->"Delay expected: Intersection "
                 + name + " stoplight"
             );
             lightInterval = ScanSupport.nextFloat(
@@ -228,12 +364,6 @@ class StopLight extends Intersection {
             throw new ConstructorFailure();
         }
         ScanSupport.lineEnd( sc, ()->this.toString() );
-        // Start the light change event process
-        Simulator.schedule(
-            new Simulator.Event( 0 ) {
-                void trigger() { lightChangeEvent( time ); }
-            }
-        );
     }
 
     /** Get the intersection description in a form like that used for input.
@@ -245,27 +375,48 @@ class StopLight extends Intersection {
 
     // Simulation methods
 
+    // Let vehicle v start driving through at time t
+    private void proceed( float t, int v ) {
+        occupant = v;
+        sim.vehicles.proceed( v, t );
+        sim.schedule(
+            new Simulator.Event( t + delay.sample(), DEPARTURE, this ) {
+                void trigger() { departureEvent( time ); }
+            }
+        );
+    }
+
+    /** Start the light change event process, with nobody waiting.
+     */
+    public void start() {
+        delay.start( sim.prng );
+        lightDir = 0;
+        occupant = Vehicles.NONE;
+        queues = new Vehicles.Queue[incoming.size()];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = sim.vehicles.newQueue();
+        }
+        sim.schedule(
+            new Simulator.Event( 0, LIGHT_CHANGE, this ) {
+                void trigger() { lightChangeEvent( time ); }
+            }
+        );
+    }
+
     /** What happens when the StopLight changes.
      *  @param t the time the light changes
      */
     private void lightChangeEvent( float t ) {
-        if (queues == null) queues = new int[incoming.size()];
         // Change the light direction
         lightDir = lightDir + 1;
         if (lightDir >= incoming.size()) lightDir = 0;
         // Release the first waiting cars if the intersection is clear
-        if ((queues[lightDir] > 0) && (occupants == 0)) {
-            queues[lightDir] = queues[lightDir] - 1;
-            Simulator.schedule(
-                new Simulator.Event( t + delay ) {
-                    void trigger() { departureEvent( time ); }
-                }
-            );
-            occupants = occupants + 1;
+        if ((!queues[lightDir].isEmpty()) && (occupant == Vehicles.NONE)) {
+            proceed( t, queues[lightDir].remove() );
         }
         // Advance the light change process
-        Simulator.schedule(
-            new Simulator.Event( t + lightInterval ) {
+        sim.schedule(
+            new Simulator.Event( t + lightInterval, LIGHT_CHANGE, this ) {
                 void trigger() { lightChangeEvent( time ); }
             }
         );
@@ -274,24 +425,21 @@ class StopLight extends Intersection {
     /** What happens when a vehicle arrives at this StopLight intersection.
      *  @param t the time the vehicle arrives
      *  @param dir the direction it arrives from
+     *  @param v the vehicle
      */
-    public void arrivalEvent( float t, int dir ) {
-        System.out.println(
+    public void arrivalEvent( float t, int dir, int v ) {
+        if (sim.tracing()) sim.output().println(
             "Vehicle arrived at " + this.toString() + " at " + t
         );
+        sim.vehicles.arrive( v, t );
         // Green and unoccupied
-        if ((dir == lightDir) && (occupants == 0)) {
+        if ((dir == lightDir) && (occupant == Vehicles.NONE)) {
             // Car goes straight through green light
-            Simulator.schedule(
-                new Simulator.Event( t + delay ) {
-                    void trigger() { departureEvent( time ); }
-                }
-            );
-            occupants = occupants + 1;
+            proceed( t, v );
         } else {
             // Light is red
             // Queue up another car
-            queues[dir] = queues[dir] + 1;
+            queues[dir].add( v );
         }
     }
 
@@ -300,18 +448,13 @@ class StopLight extends Intersection {
      */
     public void departureEvent( float t ) {
         // Move the departing vehicle onward
+        int v = occupant;
         Road r = this.pickRoad();
-        r.entryEvent( t );
-        occupants = occupants - 1;
+        r.entryEvent( t, v );
+        occupant = Vehicles.NONE;
         // If there are more vehicles, schedule the next departure
-        if (queues[lightDir] > 0) {
-            queues[lightDir] = queues[lightDir] - 1;
-            Simulator.schedule(
-                new Simulator.Event( t + delay ) {
-                    void trigger() { departureEvent( time ); }
-                }
-            );
-            occupants = occupants + 1;
+        if (!queues[lightDir].isEmpty()) {
+            proceed( t, queues[lightDir].remove() );
         }
     }
 }
@@ -325,31 +468,57 @@ class StopLight extends Intersection {
 class Source extends Intersection {
 
     // When source starts producing
-    private final float startTime;
-    // How many vehicles it produces
+    private float startTime = 0.0F;
+    // How many vehicles it produces, and how many are still to come
     private int numCars;
+    private int left;
     // Period between vehicles
-    private final float departureInterval;
+    private float departureInterval = 0.0F;
+    // Demand profile, if the source follows one instead of a fixed period
+    private Demand demand = null;
+    // Where the demand profile gets random numbers, and their number
+    private SplittableRandom stream = null;
+    private int streamNumber;
 
     /** Source Intersection constructor.
+     *  The source either follows a demand profile, given by name and the
+     *  number of vehicles, or produces vehicles at fixed intervals.
      *  @param sc the scanner from which the description is read
+     *  @param net the network this intersection is part of
      *  @param name of this intersection
      *  @throws Intersection.ConstructorFailure if description is bad
      */
-    Source( Scanner sc, String name ) throws Intersection.ConstructorFailure {
-        super( name );
+    Source( Scanner sc, RoadNetwork net, String name )
+            throws Intersection.ConstructorFailure {
+        super( net, name );
         // Parse and initialize the source description
         try {
-            startTime = ScanSupport.nextFloat(
-            sc, ()-> Source.this.toString()
-            // Bug: poorly constructed error message
-            );
-            numCars = ScanSupport.nextInt(
-            sc, ()-> Source.this.toString()
-            );
-            departureInterval = ScanSupport.nextFloat(
-            sc, ()-> Source.this.toString()
-            );
+            String profile = ScanSupport.nextWordIfAny( sc );
+            if (!"".equals( profile )) {
+                Demand d = net.findProfile( profile );
+                if (d == null) {
+                    Errors.warn( "No such profile: Intersection " + name
+                        + " source " + profile
+                    );
+                    sc.nextLine();
+                    throw new Intersection.ConstructorFailure();
+                }
+                numCars = ScanSupport.nextInt(
+                sc, ()-> "Intersection " + name + " source " + profile
+                );
+                follow( d, numCars );
+            } else {
+                startTime = ScanSupport.nextFloat(
+                sc, ()-> Source.this.toString()
+                // Bug: poorly constructed error message
+                );
+                numCars = ScanSupport.nextInt(
+                sc, ()-> Source.this.toString()
+                );
+                departureInterval = ScanSupport.nextFloat(
+                sc, ()-> Source.this.toString()
+                );
+            }
         } catch (ScanSupport.NotFound e) {
             throw new Intersection.ConstructorFailure();
         }
@@ -364,41 +533,79 @@ class Source extends Intersection {
             "Negative departure interval: " + this.toString()
         );
         ScanSupport.lineEnd( sc, ()->Source.this.toString() );
-        // Start the simulation of this source
-        Simulator.schedule(
-            new Simulator.Event( startTime ) {
-                void trigger() { departureEvent( time ); }
-            }
-        );
+    }
+
+    /** Make this source follow a demand profile.
+     *  @param d the demand profile
+     *  @param n how many vehicles it produces
+     *  @return true
+     */
+    boolean follow( Demand d, int n ) {
+        demand = d;
+        numCars = n;
+        streamNumber = sim.prng.newStream();
+        return true;
+    }
+
+    /** Sources produce vehicles.
+     *  @return true
+     */
+    public boolean isSource() {
+        return true;
     }
 
     /** Get the intersection description in a form like that used for input.
      *  @return the textual description
      */
     public String toString() {
+        if (demand != null) {
+            return  super.toString() + " source " + demand.name + " "
+                    + numCars;
+        }
         return  super.toString() + " source " + startTime + " "
                 + numCars + " " + departureInterval;
     }
 
     // Simulation methods
 
+    // When the next vehicle departs after one that departs at time t
+    private float nextDeparture( float t ) {
+        if (demand == null) return t + departureInterval;
+        return demand.next( t, stream );
+    }
+
+    /** Start the simulation of this source, with all its vehicles to come.
+     */
+    public void start() {
+        left = numCars;
+        if (demand != null) stream = sim.prng.stream( streamNumber );
+        float first = (demand == null) ? startTime : demand.next( 0, stream );
+        sim.schedule(
+            new Simulator.Event( first, DEPARTURE, this ) {
+                void trigger() { departureEvent( time ); }
+            }
+        );
+    }
+
     /** Simulate arrival of one vehicle at this source intersection.
      *  @param time When the vehicle arrives
      */
-    public void arrivalEvent( float time, int dir ) {
+    public void arrivalEvent( float time, int dir, int v ) {
         Errors.fatal( "Vehicle arrived at: " + this.toString() );
     }
 
     /** Simulate departure of one vehicle from this source intersection.
+     *  Only the next departure is ever scheduled, so a source needs no
+     *  more than one pending event however many vehicles it produces.
      *  @param t the time when the vehicle departs
      */
     public void departureEvent( float t ) {
-        // Simulate the departure
-        this.pickRoad().entryEvent( t );
+        // Simulate the departure of a new vehicle
+        this.pickRoad().entryEvent( t, sim.vehicles.create( t, number ) );
         // Schedule the departure of the next car, if there is one
-        numCars = numCars - 1;
-        if (numCars > 0) Simulator.schedule(
-            new Simulator.Event( t + departureInterval ) {
+        left = left - 1;
+        if (left > 0) sim.schedule(
+            new Simulator.Event( nextDeparture( t ), DEPARTURE, this ) {
                 void trigger() { departureEvent( time ); }
             }
         );
@@ -415,13 +622,21 @@ class Sink extends Intersection {
 
     /** Sink intersection constructor.
      *  @param sc scanner from which the description is taken
+     *  @param net the network this intersection is part of
      *  @param name of the intersection the caller already scanned
      */
-    Sink( Scanner sc, String name ) {
-        super( name );
+    Sink( Scanner sc, RoadNetwork net, String name ) {
+        super( net, name );
         ScanSupport.lineEnd( sc, ()->this.toString() );
     }
 
+    /** Sinks absorb vehicles.
+     *  @return true
+     */
+    public boolean isSink() {
+        return true;
+    }
+
     /** Get the intersection description in a form like that used for input.
      *  @return the textual description
      */
@@ -432,10 +647,12 @@ class Sink extends Intersection {
     /** Simulate arrival of one vehicle at this sink intersection.
      *  @param time When the vehicle arrives
      */
-    public void arrivalEvent( float time, int dir ) {
-        System.out.println(
+    public void arrivalEvent( float time, int dir, int v ) {
+        if (sim.tracing()) sim.output().println(
             "Vehicle arrived at " + this.toString() + " at " + time
         );
+        sim.statistics().sinkArrival( time, v );
+        sim.vehicles.release( v );
     }
 
     /** Simulate departure of one vehicle from this sink intersection.
@@ -446,3 +663,63 @@ class Sink extends Intersection {
     }
 
 }
+
+/** Intersection simulated by another partition.
+ *  <p>
+ *  This only stands in for the real intersection, so that roads crossing
+ *  between partitions have somewhere to go.  Vehicles entering such roads
+ *  are sent to the owning partition instead of arriving here.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Intersection
+ *  @see Partition
+ */
+class Remote extends Intersection {
+
+    // Partition that owns the real intersection
+    private final int partition;
+
+    /** Remote intersection constructor.
+     *  @param i the real intersection, which is discarded
+     *  @param partition the partition that owns it
+     */
+    Remote( Intersection i, int partition ) {
+        super( i.sim, i.name, i.number );
+        this.partition = partition;
+    }
+
+    /** Get the intersection description.
+     *  @return the textual description
+     */
+    public String toString() {
+        return  super.toString() + " in partition " + partition;
+    }
+
+    /** Remote intersections are never simulated here.
+     *  @return false
+     */
+    public boolean isLocal() {
+        return false;
+    }
+
+    /** Get the partition that simulates this intersection.
+     *  @return the partition number
+     */
+    public int owner() {
+        return partition;
+    }
+
+    /** Vehicles never arrive here, they are sent to the owner.
+     *  @param time When the vehicle arrives
+     */
+    public void arrivalEvent( float time, int dir, int v ) {
+        Errors.fatal( "Vehicle arrived at: " + this.toString() );
+    }
+
+    /** Vehicles never depart from here.
+     *  @param time When the vehicle departs
+     */
+    public void departureEvent( float time ) {
+        Errors.fatal( "Vehicle departed from: " + this.toString() );
+    }
+}
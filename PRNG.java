@@ -1,9 +1,15 @@
 // PRNG.java
 
 import java.util.Random;
+import java.util.SplittableRandom;
 
 /** PRNG.java
- *  Support class for pseudo-random number generation
+ *  Support class for pseudo-random number generation.
+ *  <p>
+ *  Each simulator has its own, so simulations in different threads never
+ *  share random numbers.  Independent streams are numbered as the model
+ *  is read and only made when the seed is known, so one model can be
+ *  simulated again and again, with the same or other seeds.
  *  @author Douglas W. Jones
  *  @author Piotr Smietana
  *  @version 2019-03-31
@@ -11,13 +17,61 @@ import java.util.Random;
 public class PRNG {
 
     // Warning:  For debugging, use a known seed so errors are reproducible
-    private static Random stream = new Random( 5 );
+    private long seed = 5;
+    private Random stream = new Random( seed );
+
+    // How many independent streams have been numbered, and the streams
+    // for the current seed, split in order of their numbers, or null if
+    // they have not been made since the seed was set
+    private int numbered = 0;
+    private SplittableRandom[] streams = null;
+
+    /** Start over with a seed.
+     *  This must be called before each simulation, after which every
+     *  stream starts over too.
+     *  @param s the new seed
+     */
+    public void seed( long s ) {
+        seed = s;
+        stream = new Random( seed );
+        streams = null;
+    }
+
+    /** Get the seed.
+     *  @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
 
     /** Get a random number 0 to n.
      *  @param bound one greater than the maximum return value
      *  @return n
      */
-    public static int fromZeroTo( int bound ) {
+    public int fromZeroTo( int bound ) {
 	    return stream.nextInt( bound );
     }
+
+    /** Number a new stream, independent of all others.
+     *  @return the number, by which stream() gets it
+     */
+    public int newStream() {
+        numbered = numbered + 1;
+        return numbered - 1;
+    }
+
+    /** Get a numbered stream as it starts for the current seed.
+     *  @param n the number of the stream
+     *  @return the stream
+     */
+    public SplittableRandom stream( int n ) {
+        if (streams == null) {
+            SplittableRandom root = new SplittableRandom( seed );
+            streams = new SplittableRandom[numbered];
+            for (int i = 0; i < numbered; i++) {
+                streams[i] = root.split();
+            }
+        }
+        return streams[n];
+    }
 }
@@ -0,0 +1,348 @@
+// Partition.java
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Partition.java
+ *  Support for simulating one road network in several processes.
+ *  <p>
+ *  Each process, or partition, simulates only its own intersections.
+ *  A vehicle entering a road to another partition's intersection is sent
+ *  there over TCP, to arrive when it exits the road.  Partitions advance
+ *  in lockstep through time windows as long as the shortest travel time
+ *  on any road between partitions, so nothing sent during a window can
+ *  arrive before the next one starts.  After each window, every partition
+ *  sends every other one a message with the vehicles it sent it, the
+ *  earliest time anything can happen in the sender, and whether the
+ *  sender wants to stop.  All partitions see the same messages, so they
+ *  agree on when the next window starts and on when to stop.
+ *  <p>
+ *  Messages are framed by their length in bytes, followed by the float
+ *  earliest time, a byte that is nonzero to stop, an int count and count
+ *  vehicles, each as float exit time, int road number, float entry time,
+ *  int origin, int hops, float time waited.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Simulator
+ *  @see Road
+ *  @see Remote
+ */
+public class Partition {
+
+    // This partition and all the partitions' addresses
+    private static int self = 0;
+    private static InetSocketAddress[] addresses = null;
+
+    // The simulator of this partition, once it runs
+    private static Simulator sim = null;
+
+    // Shortest travel time on any road between two partitions
+    private static float lookahead = Float.POSITIVE_INFINITY;
+
+    // Roads from other partitions into this one, by road number
+    private static final HashMap <Integer, Road> entries = new HashMap <> ();
+
+    // Vehicles waiting to be sent to each partition, and how many
+    private static ByteArrayOutputStream[] buffers;
+    private static DataOutputStream[] outgoing;
+    private static int[] counts;
+    // Earliest exit time of any vehicle sent during this window
+    private static float earliestSent = Float.POSITIVE_INFINITY;
+
+    // Connections to the other partitions, and messages read from them
+    private static DataOutputStream[] links;
+    private static LinkedBlockingQueue <byte[]>[] inboxes;
+    // Whether the message most recently received asked to stop
+    private static boolean stopRequested = false;
+
+    // How long to keep trying to connect to another partition
+    private static final int CONNECT_MILLIS = 30000;
+
+    /** Configure this process as one partition of a network.
+     *  @param me the number of this partition
+     *  @param list comma separated host:port addresses of all partitions,
+     *  in order of partition number
+     */
+    public static void configure( int me, String list ) {
+        String[] parts = list.split( "," );
+        addresses = new InetSocketAddress[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int colon = parts[i].lastIndexOf( ':' );
+            if (colon < 0) {
+                Errors.fatal( "Partition address needs a port: " + parts[i] );
+            }
+            try {
+                addresses[i] = new InetSocketAddress(
+                    parts[i].substring( 0, colon ),
+                    Integer.parseInt( parts[i].substring( colon + 1 ) )
+                );
+            } catch (IllegalArgumentException e) {
+                Errors.fatal( "Bad partition address: " + parts[i] );
+            }
+        }
+        if ((me < 0) || (me >= parts.length)) {
+            Errors.fatal( "No such partition: " + me );
+        }
+        self = me;
+    }
+
+    /** Is the network split between several processes.
+     *  @return true if it is
+     */
+    public static boolean distributed() {
+        return addresses != null;
+    }
+
+    /** Get the number of this partition.
+     *  @return the partition number, 0 if the network is not split
+     */
+    public static int self() {
+        return self;
+    }
+
+    /** Does this process simulate a partition's intersections.
+     *  @param p the partition number
+     *  @return true if it does
+     */
+    public static boolean owns( int p ) {
+        return !distributed() || (p == self);
+    }
+
+    /** Is a partition number valid.
+     *  @param p the partition number
+     *  @return true if there is such a partition
+     */
+    public static boolean exists( int p ) {
+        return (p >= 0) && (!distributed() || (p < addresses.length));
+    }
+
+    /** Take note of a road, called for every road in the network.
+     *  @param r the road
+     */
+    public static void road( Road r ) {
+        int from = r.getSource().owner();
+        int to = r.getDestination().owner();
+        if (from == to) return;
+        lookahead = Math.min( lookahead, r.minimumTravelTime() );
+        if (to == self) entries.put( r.number, r );
+    }
+
+    /** Send a vehicle to another partition.
+     *  @param p the partition to send it to
+     *  @param t the time it exits the road into that partition
+     *  @param r the road
+     *  @param v the vehicle, which the caller should release
+     */
+    public static void send( int p, float t, Road r, int v ) {
+        DataOutputStream out = outgoing[p];
+        try {
+            out.writeFloat( t );
+            out.writeInt( r.number );
+            out.writeFloat( sim.vehicles.entryTime( v ) );
+            out.writeInt( sim.vehicles.origin( v ) );
+            out.writeInt( sim.vehicles.hops( v ) );
+            out.writeFloat( sim.vehicles.waited( v ) );
+        } catch (IOException e) {
+            // Writes to a byte array never fail
+        }
+        counts[p] = counts[p] + 1;
+        earliestSent = Math.min( earliestSent, t );
+    }
+
+    // Connect to every other partition.  Lower numbered partitions accept
+    // connections from higher numbered ones, which say who they are.
+    private static void connect() throws IOException {
+        int n = addresses.length;
+        links = new DataOutputStream[n];
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        LinkedBlockingQueue <byte[]>[] queues = new LinkedBlockingQueue[n];
+        inboxes = queues;
+        Socket[] sockets = new Socket[n];
+
+        for (int p = 0; p < self; p++) {
+            long deadline = System.currentTimeMillis() + CONNECT_MILLIS;
+            while (sockets[p] == null) {
+                try {
+                    sockets[p] = new Socket(
+                        addresses[p].getHostString(), addresses[p].getPort()
+                    );
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) throw e;
+                    try {
+                        Thread.sleep( 100 );
+                    } catch (InterruptedException ie) {
+                        throw new IOException( "interrupted" );
+                    }
+                }
+            }
+            new DataOutputStream( sockets[p].getOutputStream() )
+                .writeInt( self );
+        }
+        if (self < n - 1) {
+            try (ServerSocket server = new ServerSocket()) {
+                server.setReuseAddress( true );
+                server.bind( addresses[self] );
+                for (int i = self + 1; i < n; i++) {
+                    Socket s = server.accept();
+                    int p = new DataInputStream( s.getInputStream() ).readInt();
+                    if ((p <= self) || (p >= n) || (sockets[p] != null)) {
+                        throw new IOException( "unexpected partition " + p );
+                    }
+                    sockets[p] = s;
+                }
+            }
+        }
+
+        // Reading happens in its own thread for each partition, so that
+        // large messages can't deadlock partitions writing to each other
+        for (int p = 0; p < n; p++) {
+            if (p == self) continue;
+            sockets[p].setTcpNoDelay( true );
+            links[p] = new DataOutputStream(
+                new BufferedOutputStream( sockets[p].getOutputStream() )
+            );
+            inboxes[p] = new LinkedBlockingQueue <> ();
+            final int from = p;
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream( sockets[p].getInputStream() )
+            );
+            Thread reader = new Thread( ()-> {
+                try {
+                    while (true) {
+                        byte[] message = new byte[in.readInt()];
+                        in.readFully( message );
+                        inboxes[from].put( message );
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // The connection closed, an empty message says so
+                    inboxes[from].offer( new byte[0] );
+                }
+            } );
+            reader.setDaemon( true );
+            reader.start();
+        }
+    }
+
+    // Start collecting vehicles to send in the next window
+    private static void clearBuffers() {
+        for (int p = 0; p < addresses.length; p++) {
+            buffers[p].reset();
+            counts[p] = 0;
+        }
+        earliestSent = Float.POSITIVE_INFINITY;
+    }
+
+    // Send each partition its message for the window just finished
+    private static void flush( float earliest, boolean stop )
+            throws IOException {
+        for (int p = 0; p < addresses.length; p++) {
+            if (p == self) continue;
+            DataOutputStream link = links[p];
+            link.writeInt( 9 + buffers[p].size() );
+            link.writeFloat( earliest );
+            link.writeByte( stop ? 1 : 0 );
+            link.writeInt( counts[p] );
+            buffers[p].writeTo( link );
+            link.flush();
+        }
+    }
+
+    /** Run this partition's share of the simulation.
+     *  This must be called after all initial events are scheduled.
+     *  It returns when no partition has anything left to simulate before
+     *  the end time, or when any partition has been asked to stop.
+     *  @param s the simulator that simulates this partition
+     *  @param until the time at which to end the simulation
+     */
+    public static void run( Simulator s, float until ) {
+        sim = s;
+        int n = addresses.length;
+        if (!(lookahead > 0.0F)) {
+            Errors.fatal(
+                "Roads between partitions need a positive minimum travel time"
+            );
+        }
+        buffers = new ByteArrayOutputStream[n];
+        outgoing = new DataOutputStream[n];
+        counts = new int[n];
+        for (int p = 0; p < n; p++) {
+            buffers[p] = new ByteArrayOutputStream();
+            outgoing[p] = new DataOutputStream( buffers[p] );
+        }
+        try {
+            connect();
+            float start = sim.nextTime();
+            boolean stop = false;
+            // Agree on where the first window starts
+            clearBuffers();
+            flush( start, false );
+            for (int p = 0; p < n; p++) {
+                if (p != self) start = Math.min( start, receive( p ) );
+            }
+            while ((start < until) && !stop) {
+                sim.runUntil( Math.min( start + lookahead, until ) );
+                stop = sim.stopped();
+                float earliest = Math.min( sim.nextTime(), earliestSent );
+                flush( earliest, stop );
+                clearBuffers();
+                start = earliest;
+                for (int p = 0; p < n; p++) {
+                    if (p == self) continue;
+                    start = Math.min( start, receive( p ) );
+                    stop = stop || stopRequested;
+                }
+            }
+            for (int p = 0; p < n; p++) {
+                if (p != self) links[p].close();
+            }
+        } catch (IOException e) {
+            Errors.fatal( "Partition " + self + ": " + e.getMessage() );
+        }
+        sim.finish();
+    }
+
+    // Receive the next message from a partition and schedule the vehicles
+    // in it, returning the earliest time that partition reported
+    private static float receive( int p ) throws IOException {
+        byte[] message;
+        try {
+            message = inboxes[p].take();
+        } catch (InterruptedException e) {
+            throw new IOException( "interrupted" );
+        }
+        if (message.length == 0) {
+            throw new IOException( "partition " + p + " disconnected" );
+        }
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream( message )
+        );
+        float earliest = in.readFloat();
+        stopRequested = in.readByte() != 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            float t = in.readFloat();
+            Road r = entries.get( in.readInt() );
+            float entered = in.readFloat();
+            int origin = in.readInt();
+            int hops = in.readInt();
+            float waited = in.readFloat();
+            if (r == null) {
+                throw new IOException( "vehicle on unknown road from " + p );
+            }
+            r.transitEvent(
+                t, sim.vehicles.transfer( entered, origin, hops, waited )
+            );
+        }
+        return earliest;
+    }
+}
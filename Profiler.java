@@ -0,0 +1,187 @@
+// Profiler.java
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Self profiling support for the discrete event simulator.
+ *  <p>
+ *  Every event is counted by kind and by the road or intersection it acts
+ *  on.  One event in SAMPLE of each kind is also timed and, where the JVM
+ *  supports it, the memory allocated by its trigger is measured.  Estimates
+ *  for the unsampled events are scaled up from the samples.  A simulator
+ *  that is asked to profile makes a profiler for each simulation.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Simulator
+ */
+public class Profiler {
+
+    // Statistics kept for one kind of event or one entity
+    private static class Stats {
+        final String label;
+        long count = 0;
+        long sampled = 0;
+        long nanos = 0;
+        long bytes = 0;
+
+        Stats( String label ) {
+            this.label = label;
+        }
+
+        // Estimated total time spent triggering these events
+        double estimatedNanos() {
+            if (sampled == 0) return 0.0;
+            return (double) nanos * count / sampled;
+        }
+    }
+
+    // Time one event in this many
+    private static final int SAMPLE = 64;
+
+    // Number of hottest entities to report
+    private static final int HOTTEST = 10;
+
+    // Statistics by event kind, then by class of the event target
+    private final
+    HashMap <Simulator.Kind, HashMap <Class <?>, Stats>> byKind
+    = new HashMap <> ();
+
+    // Statistics by event target, only the timings of events that were
+    // sampled for their kind are included
+    private final HashMap <Object, Stats> byTarget
+    = new HashMap <> ();
+
+    // Where allocation is measured, null if the JVM can't
+    private com.sun.management.ThreadMXBean allocation = null;
+
+    // Total events seen and wall clock time profiling started
+    private long events = 0;
+    private long startNanos = 0;
+
+    /** Start profiling, called before the first event is triggered.
+     */
+    public void begin() {
+        java.lang.management.ThreadMXBean bean
+            = ManagementFactory.getThreadMXBean();
+        if ((bean instanceof com.sun.management.ThreadMXBean)
+        &&  ((com.sun.management.ThreadMXBean) bean)
+                .isThreadAllocatedMemorySupported()) {
+            allocation = (com.sun.management.ThreadMXBean) bean;
+            allocation.setThreadAllocatedMemoryEnabled( true );
+        }
+        startNanos = System.nanoTime();
+    }
+
+    // Find or create the kind statistics for e
+    private Stats kindStats( Simulator.Event e ) {
+        HashMap <Class <?>, Stats> byClass = byKind.get( e.kind );
+        if (byClass == null) {
+            byClass = new HashMap <> ();
+            byKind.put( e.kind, byClass );
+        }
+        Class <?> c = (e.target == null) ? Object.class : e.target.getClass();
+        Stats s = byClass.get( c );
+        if (s == null) {
+            s = new Stats(
+                (e.target == null)
+                    ? e.kind.name : c.getName() + " " + e.kind.name
+            );
+            byClass.put( c, s );
+        }
+        return s;
+    }
+
+    // Find or create the target statistics for e, null if it has no target
+    private Stats targetStats( Simulator.Event e ) {
+        if (e.target == null) return null;
+        Stats s = byTarget.get( e.target );
+        if (s == null) {
+            s = new Stats( e.target.toString() );
+            byTarget.put( e.target, s );
+        }
+        return s;
+    }
+
+    /** Trigger an event, counting it and measuring it if it is sampled.
+     *  @param e the event
+     */
+    public void trigger( Simulator.Event e ) {
+        events = events + 1;
+        Stats k = kindStats( e );
+        Stats t = targetStats( e );
+        k.count++;
+        if (t != null) t.count++;
+        if ((k.count % SAMPLE) != 1) {
+            e.trigger();
+            return;
+        }
+        long threadId = Thread.currentThread().getId();
+        long bytes = (allocation == null)
+            ? 0 : allocation.getThreadAllocatedBytes( threadId );
+        long nanos = System.nanoTime();
+        e.trigger();
+        nanos = System.nanoTime() - nanos;
+        if (allocation != null) {
+            bytes = allocation.getThreadAllocatedBytes( threadId ) - bytes;
+        }
+        k.sampled++;
+        k.nanos += nanos;
+        k.bytes += bytes;
+        if (t != null) {
+            t.sampled++;
+            t.nanos += nanos;
+            t.bytes += bytes;
+        }
+    }
+
+    // Output one line of the report
+    private void line( Stats s ) {
+        Errors.messages().printf(
+            "  %12d %12.3f %10.0f %10s  %s%n",
+            s.count,
+            s.estimatedNanos() / 1e6,
+            (s.sampled == 0) ? 0.0 : (double) s.nanos / s.sampled,
+            (allocation == null) ? "-"
+                : (s.sampled == 0) ? "0" : Long.toString( s.bytes / s.sampled ),
+            s.label
+        );
+    }
+
+    // Output a table of statistics, hottest first, at most limit lines
+    private void table( ArrayList <Stats> all, int limit ) {
+        all.sort( (s1, s2) -> Double.compare(
+            s2.estimatedNanos(), s1.estimatedNanos()
+        ) );
+        Errors.messages().printf( "  %12s %12s %10s %10s  %s%n",
+            "events", "est. ms", "ns/event", "B/event", "what"
+        );
+        for (int i = 0; (i < all.size()) && (i < limit); i++) {
+            line( all.get( i ) );
+        }
+    }
+
+    /** Output the profile, called after the last event is triggered.
+     *  @param pending how many events were left in the event set
+     */
+    public void report( int pending ) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Errors.messages().printf(
+            "RoadNetwork: profile: %d events in %.3f s (%.0f events/s),"
+            + " %d still pending%n",
+            events, seconds, events / seconds, pending
+        );
+
+        Errors.messages().println( "RoadNetwork: profile by event kind:" );
+        ArrayList <Stats> kinds = new ArrayList <> ();
+        for (HashMap <Class <?>, Stats> byClass: byKind.values()) {
+            kinds.addAll( byClass.values() );
+        }
+        table( kinds, kinds.size() );
+
+        Errors.messages().println(
+            "RoadNetwork: hottest roads and intersections:"
+        );
+        table( new ArrayList <> ( byTarget.values() ), HOTTEST );
+    }
+}
@@ -0,0 +1,280 @@
+// ResultCache.java
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/** ResultCache.java
+ *  Persistent cache of simulation results.
+ *  <p>
+ *  The simulation is deterministic for a given network, options and seed,
+ *  so its output can be kept and replayed instead of simulating again.
+ *  Results are kept in a directory, each under the SHA-256 hash of
+ *  everything that determines it, as two files: one for the output and
+ *  one for the messages.  That is the model as read, in the canonical
+ *  form the network is printed in, so that input differing only in
+ *  spacing, comments or number format shares results, and a description
+ *  of the options.  When the directory grows beyond
+ *  its size limit, the results least recently used are removed.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Simulator
+ *  @see Errors
+ */
+public class ResultCache {
+
+    // Changes to the simulator that change results must change this
+    private static final String VERSION = "RoadNetwork result cache 4\n";
+
+    // Temporary files older than this were left by runs that died
+    private static final long STALE_MILLIS = 24L * 60 * 60 * 1000;
+
+    // Hash of the model as described through describe()
+    private static final MessageDigest model = sha256();
+
+    // Where results are kept, and how many bytes they may use
+    private static File directory = null;
+    private static long limit = 256L * 1024 * 1024;
+
+    // Hash of the result being recorded, and where it is recorded
+    private static String recording = null;
+    private static volatile File outFile;
+    private static volatile File errFile;
+    private static OutputStream outCopy;
+    private static OutputStream errCopy;
+
+    // Set when the result being recorded is incomplete
+    private static volatile boolean abandoned = false;
+
+    /** Output stream that writes to two others.
+     */
+    private static class Tee extends OutputStream {
+        private final OutputStream a;
+        private final OutputStream b;
+
+        Tee( OutputStream a, OutputStream b ) {
+            this.a = a;
+            this.b = b;
+        }
+
+        public void write( int c ) throws IOException {
+            a.write( c );
+            b.write( c );
+        }
+
+        public void write( byte[] buf, int off, int len ) throws IOException {
+            a.write( buf, off, len );
+            b.write( buf, off, len );
+        }
+
+        public void flush() throws IOException {
+            a.flush();
+            b.flush();
+        }
+    }
+
+    /** Keep results in a directory.
+     *  @param dir the directory, created if need be
+     *  @param bytes how many bytes the results may use
+     */
+    public static void enable( String dir, long bytes ) {
+        directory = new File( dir );
+        limit = bytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Errors.fatal( "Can't make cache directory: " + dir );
+        }
+    }
+
+    /** Are results being kept.
+     *  @return true if they are
+     */
+    public static boolean enabled() {
+        return directory != null;
+    }
+
+    // Make a new SHA-256 hash
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance( "SHA-256" );
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /** Make part of the model determine the key of the result.
+     *  Every part must be described, in the order read, before key().
+     *  @param part the canonical description of the part, one line
+     */
+    public static void describe( String part ) {
+        model.update( (part + "\n").getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /** Compute the key of a result.
+     *  @param description what determines the result besides the model
+     *  @return the key, as hexadecimal
+     */
+    public static String key( String description ) {
+        MessageDigest d = sha256();
+        d.update( (VERSION + description).getBytes( StandardCharsets.UTF_8 ) );
+        d.update( model.digest() );
+        StringBuilder s = new StringBuilder();
+        for (byte b: d.digest()) s.append( String.format( "%02x", b ) );
+        return s.toString();
+    }
+
+    /** Output a kept result, if there is one.
+     *  @param key the key of the result
+     *  @param sim the simulator whose output it is
+     *  @return true if the result was kept and has been output
+     */
+    public static boolean replay( String key, Simulator sim ) {
+        File out = new File( directory, key + ".out" );
+        File err = new File( directory, key + ".err" );
+        if (!out.isFile() || !err.isFile()) return false;
+        try {
+            // Messages are short, read them first so that nothing is
+            // output unless the whole result can be
+            byte[] messages = Files.readAllBytes( err.toPath() );
+            Files.copy( out.toPath(), sim.output() );
+            Errors.messages().write( messages );
+        } catch (IOException e) {
+            // Removed while being read
+            return false;
+        }
+        sim.output().flush();
+        Errors.messages().flush();
+        // Most recently used now
+        long now = System.currentTimeMillis();
+        out.setLastModified( now );
+        err.setLastModified( now );
+        return true;
+    }
+
+    /** Start recording a result, sending copies of all output and messages
+     *  to the cache.
+     *  @param key the key of the result
+     *  @param sim the simulator whose output it is
+     */
+    public static void record( String key, Simulator sim ) {
+        try {
+            outFile = File.createTempFile( key, ".tmp", directory );
+            errFile = File.createTempFile( key, ".tmp", directory );
+            outCopy = new BufferedOutputStream(
+                new FileOutputStream( outFile )
+            );
+            errCopy = new BufferedOutputStream(
+                new FileOutputStream( errFile )
+            );
+        } catch (IOException e) {
+            Errors.note( "Can't cache result: " + e.getMessage() );
+            return;
+        }
+        recording = key;
+        sim.redirect( new PrintStream(
+            new Tee( sim.output(), outCopy ), false
+        ) );
+        Errors.redirect( new PrintStream(
+            new Tee( Errors.messages(), errCopy ), false
+        ) );
+    }
+
+    /** Give up on the result being recorded, because it is incomplete.
+     *  Its temporary files are removed at once, since the program may be
+     *  ending without store() being called.  This may be called from any
+     *  thread.
+     */
+    public static void abandon() {
+        abandoned = true;
+        File out = outFile;
+        File err = errFile;
+        if (out != null) out.delete();
+        if (err != null) err.delete();
+    }
+
+    /** Keep the result that was recorded, unless it was abandoned.
+     *  @param sim the simulator whose output it is
+     */
+    public static void store( Simulator sim ) {
+        if (recording == null) return;
+        sim.output().flush();
+        Errors.messages().flush();
+        try {
+            outCopy.close();
+            errCopy.close();
+            if (!abandoned) {
+                // Each file appears whole or not at all
+                Files.move( outFile.toPath(),
+                    new File( directory, recording + ".out" ).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+                );
+                Files.move( errFile.toPath(),
+                    new File( directory, recording + ".err" ).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+                );
+                evict();
+            }
+        } catch (IOException e) {
+            Errors.note( "Can't cache result: " + e.getMessage() );
+        }
+        outFile.delete();
+        errFile.delete();
+        recording = null;
+    }
+
+    // Remove the results least recently used until the rest fit the limit,
+    // and any temporary files left by runs that died
+    private static void evict() {
+        File[] stale = directory.listFiles(
+            (File d, String name) -> name.endsWith( ".tmp" )
+        );
+        long old = System.currentTimeMillis() - STALE_MILLIS;
+        for (int i = 0; (stale != null) && (i < stale.length); i++) {
+            if (stale[i].lastModified() < old) stale[i].delete();
+        }
+
+        File[] files = directory.listFiles(
+            (File d, String name) -> name.endsWith( ".out" )
+        );
+        if (files == null) return;
+        long[] sizes = new long[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            File err = new File( directory, partner( files[i] ) );
+            sizes[i] = files[i].length() + err.length();
+            total = total + sizes[i];
+        }
+        if (total <= limit) return;
+        Integer[] order = new Integer[files.length];
+        long[] used = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            used[i] = files[i].lastModified();
+        }
+        Arrays.sort( order, (i, j) -> Long.compare( used[i], used[j] ) );
+        for (int k = 0; (k < order.length) && (total > limit); k++) {
+            int i = order[k];
+            // Remove the output first, so a result is never half there
+            files[i].delete();
+            new File( directory, partner( files[i] ) ).delete();
+            total = total - sizes[i];
+        }
+    }
+
+    // Name of the messages file that goes with an output file
+    private static String partner( File out ) {
+        String name = out.getName();
+        return name.substring( 0, name.length() - ".out".length() ) + ".err";
+    }
+}
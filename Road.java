@@ -7,26 +7,35 @@ import java.util.Scanner;
  *  @author Piotr Smietana
  *  @version 2019-03-31
  */
-public class Road {
+public class Road implements Simulator.Entity {
 
     /** Constructors may throw this when an error prevents construction.
      */
     public static class ConstructorFailure extends Exception {}
 
+    /** Number of this Road, counting from zero in input order.
+     */
+    public final int number;
+
+    // The simulator in which this road schedules its events
+    private final Simulator sim;
+
     // Where this road comes from
     private final Intersection source;
     // Where this road goes, never null
     private final Intersection destination;
     // Travel time measured in seconds, always positive
-    private final float travelTime;
+    private final Delay travelTime;
     // What direction does this enter dst
-    private final int dstDir;
+    private int dstDir;
 
     /** Construct a new road by scanning its description from the source file.
      *  @param sc the scanner from which the input is read
+     *  @param net the network the road is part of
      *  @throws ConstructorFailure when it cannot construct a road
      */
-    Road( Scanner sc ) throws ConstructorFailure {
+    Road( Scanner sc, RoadNetwork net ) throws ConstructorFailure {
+        sim = net.sim;
         final String sourceName;
         final String dstName;
         try {
@@ -39,8 +48,8 @@ public class Road {
         } catch (ScanSupport.NotFound e) {
             throw new ConstructorFailure();
         }
-        source = RoadNetwork.findIntersection( sourceName );
-        destination = RoadNetwork.findIntersection( dstName );
+        source = net.findIntersection( sourceName );
+        destination = net.findIntersection( dstName );
         if (source == null) {
             Errors.warn( "No such source intersection: Road "
                 + sourceName + " " + dstName
@@ -56,21 +65,25 @@ public class Road {
             throw new ConstructorFailure();
         }
         try {
-            travelTime = ScanSupport.nextFloat(
-            sc, ()->"Floating point travel time expected: Road "
+            travelTime = Delay.scan(
+            sc, sim.prng, ()->"Travel time expected: Road "
                 + sourceName + " " + dstName
             );
         } catch (ScanSupport.NotFound e) {
             throw new ConstructorFailure();
         }
-        if (travelTime < 0.0F) {
+        if (travelTime.negative()) {
             Errors.warn( "Negative travel time:" + this.toString() );
         }
         ScanSupport.lineEnd( sc, ()->this.toString() );
-        // Register this road with its source and destination intersections
-        source.outgoing.add( this );
+        number = net.numberRoad();
+        // Register this road with its source and destination intersections,
+        // unless neither is simulated here
         dstDir = destination.incoming.size();
-        destination.incoming.add( this );
+        if (isLocal()) {
+            source.outgoing.add( this );
+            destination.incoming.add( this );
+        }
     }
 
     /** Give the road in a form like that used for input.
@@ -82,25 +95,89 @@ public class Road {
                 + travelTime;
     }
 
+    /** Get the number of this road.
+     *  @return the number
+     */
+    public int number() {
+        return number;
+    }
+
+    // Note which of the roads into the destination this is, when roads
+    // that are never used have been removed from there
+    void renumber( int dir ) {
+        dstDir = dir;
+    }
+
+    /** Get the intersection this road comes from.
+     *  @return the source intersection
+     */
+    public Intersection getSource() {
+        return source;
+    }
+
+    /** Get the intersection this road goes to.
+     *  @return the destination intersection
+     */
+    public Intersection getDestination() {
+        return destination;
+    }
+
+    /** Get the shortest time it can take to travel this road.
+     *  @return the minimum travel time
+     */
+    public float minimumTravelTime() {
+        return travelTime.minimum();
+    }
+
+    /** Does this road touch any intersection simulated here.
+     *  @return true if it does
+     */
+    public boolean isLocal() {
+        return source.isLocal() || destination.isLocal();
+    }
+
     // Simulation methods
 
+    /** Get this road ready for a simulation.
+     */
+    public void start() {
+        travelTime.start( sim.prng );
+    }
+
     /** What happens when a vehicle enters this road.
      *  @param t the time the vehicle enters
+     *  @param v the vehicle
      */
-    public void entryEvent( float t ) {
-        System.out.println(
+    public void entryEvent( float t, int v ) {
+        if (sim.tracing()) sim.output().println(
             "Vehicle entered " + this.toString() + " at " + t
         );
+        sim.vehicles.hop( v );
         // After a vehicle enters the road, it exits it travelTime later
-        Simulator.schedule(
-            new Simulator.Event( t + travelTime ) {
-                void trigger() { exitEvent( time ); }
+        float exit = t + travelTime.sample();
+        if (destination.isLocal()) {
+            transitEvent( exit, v );
+        } else {
+            // The vehicle continues in another partition
+            Partition.send( destination.owner(), exit, this, v );
+            sim.vehicles.release( v );
+        }
+    }
+
+    /** Schedule the exit of a vehicle already on this road.
+     *  @param t the time the vehicle will exit
+     *  @param v the vehicle
+     */
+    public void transitEvent( float t, int v ) {
+        sim.schedule(
+            new Simulator.Event( t, Intersection.EXIT, this ) {
+                void trigger() { exitEvent( time, v ); }
             }
         );
     }
 
     // What happens when a vehicle exits this road.
-    private void exitEvent(float time) {
-        destination.arrivalEvent( time, dstDir );
+    private void exitEvent( float time, int v ) {
+        destination.arrivalEvent( time, dstDir, v );
     }
 }
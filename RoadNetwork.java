@@ -1,11 +1,19 @@
 // RoadNetwork.java
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
-import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 /** RoadNetwork is the main class.
+ *  <p>
+ *  Each road network is an object, a model built once from its
+ *  description, with the simulator it runs in.  The main program builds
+ *  one and simulates it once; a service keeps models and simulates each
+ *  of them again for every job, resetting the simulator in between.
  *  @author Douglas W. Jones
  *  @author Piotr Smietana
  *  @version 2019-03-31
@@ -14,44 +22,191 @@ import java.util.Scanner;
  *  @see ScanSupport
  *  @see Errors
  *  @see Simulator
+ *  @see Partition
  */
 public class RoadNetwork {
 
+    /** The simulator in which this network is simulated.
+     */
+    final Simulator sim = new Simulator();
+
     // The sets of all roads and all intersections
-    private static LinkedList <Road> roads
+    private LinkedList <Road> roads
     = new LinkedList <> ();
-    private static LinkedList <Intersection> inters
+    private LinkedList <Intersection> inters
     = new LinkedList <> ();
 
+    // All intersections by name, so large networks can be found quickly
+    private final HashMap <String, Intersection> byName
+    = new HashMap <> ();
+
+    // All demand profiles, by name
+    private final HashMap <String, Demand> profiles
+    = new HashMap <> ();
+
+    // How many intersections and roads have been numbered
+    private int intersectionCount = 0;
+    private int roadCount = 0;
+
     /** Find an intersection by textual name in the set of all intersections.
      *  @param s name of an intersection
      *  @return the intersection named s or null if there are none
      */
-    public static Intersection findIntersection( String s ) {
-        for (Intersection i: inters) {
-            if (i.name.equals( s )) {
-                return i;
+    public Intersection findIntersection( String s ) {
+        return byName.get( s );
+    }
+
+    /** Find a demand profile by name.
+     *  @param s the name of a profile
+     *  @return the profile named s, or null if there is none
+     */
+    public Demand findProfile( String s ) {
+        return profiles.get( s );
+    }
+
+    /** Number a new intersection, counting from zero in input order.
+     *  @return the number
+     */
+    int numberIntersection() {
+        intersectionCount = intersectionCount + 1;
+        return intersectionCount - 1;
+    }
+
+    /** Number a new road, counting from zero in input order.
+     *  @return the number
+     */
+    int numberRoad() {
+        roadCount = roadCount + 1;
+        return roadCount - 1;
+    }
+
+    // Add an intersection to the set of all intersections
+    private void addIntersection( Intersection i ) {
+        inters.add( i );
+        byName.put( i.name, i );
+    }
+
+    // Make a source follow a demand profile, scanning its description
+    private void readDemandLine( Scanner sc ) {
+        final String sourceName;
+        final String profileName;
+        final int numCars;
+        try {
+            sourceName = ScanSupport.nextName( sc, ()-> "Demand ???" );
+            profileName = ScanSupport.nextName(
+                sc, ()-> "Demand " + sourceName + " ???"
+            );
+            numCars = ScanSupport.nextInt(
+                sc, ()-> "Demand " + sourceName + " " + profileName + " ???"
+            );
+        } catch (ScanSupport.NotFound e) {
+            return;
+        }
+        final String demand
+            = "Demand " + sourceName + " " + profileName + " " + numCars;
+        ScanSupport.lineEnd( sc, ()-> demand );
+        describe( demand );
+        Intersection i = findIntersection( sourceName );
+        Demand d = findProfile( profileName );
+        if (i == null) {
+            Errors.warn( "No such source: " + demand );
+        } else if (d == null) {
+            Errors.warn( "No such profile: " + demand );
+        } else if (!i.isLocal()) {
+            // Another partition simulates this source, but its stream is
+            // split off here too, so that every partition, whichever
+            // part of the network it reads, gives the same streams to the
+            // same sources and delays
+            sim.prng.newStream();
+        } else if (!i.isSource()) {
+            Errors.warn( "Not a source: " + demand );
+        } else if (numCars <= 0) {
+            Errors.warn( "Never produces: " + demand );
+        } else {
+            i.follow( d, numCars );
+        }
+    }
+
+    // Handle the commands that describe demand, return false for others
+    private boolean readDemandCommand( String command, Scanner sc ) {
+        if ("profile".equals( command )) {
+            try {
+                Demand d = new Demand( sc );
+                describe( d );
+                if (profiles.containsKey( d.name )) Errors.warn(
+                    "Profile redefined: " + d.name
+                );
+                profiles.put( d.name, d );
+            } catch (Demand.ConstructorFailure e) {
+                // Do nothing, the constructor already reported the error
             }
+        } else if ("demand".equals( command )) {
+            readDemandLine( sc );
+        } else {
+            return false;
         }
-        return null;
+        return true;
     }
 
-    // Initialize this road network by scanning its description
-    private static void readNetwork( Scanner sc ) {
+    // Read a demand file, holding only profiles and demand lines.
+    // Nothing is kept per line, so the file may be arbitrarily long.
+    private void readDemand( Scanner sc ) {
+        while (sc.hasNext()) {
+            String command = sc.next();
+            if (readDemandCommand( command, sc )) {
+                // Nothing else to do
+            } else if ("--".equals( command )) {
+                sc.nextLine();
+            } else {
+                Errors.warn( "Unknown demand command: " + command );
+                sc.nextLine();
+            }
+        }
+    }
+
+    // Initialize this road network by scanning its description.
+    // Intersections belong to the partition named by the last partition
+    // command before them; those of other partitions are only stand-ins.
+    private void readNetwork( Scanner sc ) {
+        int partition = 0;
         while (sc.hasNext()) {
             String command = sc.next();
             if ("intersection".equals( command )) {
                 try {
-                    inters.add( Intersection.newIntersection( sc ) );
+                    Intersection i = Intersection.newIntersection( sc, this );
+                    describe( i );
+                    if (Partition.owns( partition )) {
+                        addIntersection( i );
+                    } else {
+                        addIntersection( i.standIn( partition ) );
+                    }
                 } catch (Intersection.ConstructorFailure e) {
                     // Do nothing, the constructor already reported the error
                 }
             } else if ("road".equals( command )) {
                 try {
-                    roads.add( new Road( sc ) );
+                    Road r = new Road( sc, this );
+                    describe( r );
+                    Partition.road( r );
+                    if (r.isLocal()) roads.add( r );
                 } catch (Road.ConstructorFailure e) {
                     // Do nothing, the constructor already reported the error
                 }
+            } else if ("partition".equals( command )) {
+                try {
+                    partition = ScanSupport.nextInt(
+                        sc, ()-> "Partition number expected"
+                    );
+                    final int p = partition;
+                    if (!Partition.exists( p )) {
+                        Errors.warn( "No such partition: " + p );
+                    }
+                    ScanSupport.lineEnd( sc, ()-> "Partition " + p );
+                } catch (ScanSupport.NotFound e) {
+                    // Do nothing, the scanner already reported the error
+                }
+            } else if (readDemandCommand( command, sc )) {
+                // Nothing else to do
             } else if ("--".equals( command )) {
                 sc.nextLine();
             } else {
@@ -61,32 +216,406 @@ public class RoadNetwork {
         }
     }
 
+    // Find all intersections reachable from the given starting set,
+    // following roads forward or, if backward is true, in reverse
+    private static HashSet <Intersection> reach(
+        LinkedList <Intersection> start, boolean backward
+    ) {
+        HashSet <Intersection> seen = new HashSet <> ( start );
+        LinkedList <Intersection> work = new LinkedList <> ( start );
+        while (!work.isEmpty()) {
+            Intersection i = work.removeFirst();
+            for (Road r: (backward ? i.incoming : i.outgoing)) {
+                Intersection next
+                    = backward ? r.getSource() : r.getDestination();
+                if (seen.add( next )) {
+                    work.addLast( next );
+                }
+            }
+        }
+        return seen;
+    }
+
+    // Check the network before simulation and prune what can never be used.
+    // Intersections that no source reaches, and roads out of them, are
+    // dropped from the model so they never schedule events, and unlinked
+    // from the rest of it so stoplights give them no turn.  Dead ends that
+    // would crash the simulation are reported as errors; regions vehicles
+    // can enter but never leave for a sink are reported as notes.  Only
+    // part of the network is known when it is split between partitions,
+    // so intersections of other partitions count as both source and sink.
+    private void checkNetwork() {
+        LinkedList <Intersection> sources = new LinkedList <> ();
+        LinkedList <Intersection> sinks = new LinkedList <> ();
+        for (Intersection i: inters) {
+            if (!i.isLocal() || i.isSource()) sources.add( i );
+            if (!i.isLocal() || i.isSink()) sinks.add( i );
+        }
+        HashSet <Intersection> live = reach( sources, false );
+        HashSet <Intersection> drains = reach( sinks, true );
+
+        LinkedList <Intersection> keptInters = new LinkedList <> ();
+        for (Intersection i: inters) {
+            if (!i.isLocal()) {
+                // Keep stand-ins only where roads cross into this partition
+                if (!i.outgoing.isEmpty() || !i.incoming.isEmpty()) {
+                    keptInters.add( i );
+                } else {
+                    byName.remove( i.name );
+                }
+            } else if (!live.contains( i )) {
+                Errors.note( "Unreachable, not simulated: " + i.toString() );
+                byName.remove( i.name );
+            } else {
+                keptInters.add( i );
+                if (!i.isSink() && i.outgoing.isEmpty()) {
+                    Errors.warn( "Dead end, no outgoing roads: "
+                        + i.toString()
+                    );
+                } else if (!drains.contains( i )) {
+                    Errors.note( "Vehicles can never reach a sink from: "
+                        + i.toString()
+                    );
+                }
+            }
+        }
+        LinkedList <Road> keptRoads = new LinkedList <> ();
+        for (Road r: roads) {
+            if (live.contains( r.getSource() )) {
+                keptRoads.add( r );
+            } else {
+                Errors.note( "Never carries traffic: " + r.toString() );
+                r.getDestination().forgetIncoming( r );
+            }
+        }
+        inters = keptInters;
+        roads = keptRoads;
+    }
+
     // Print out the road network
-    private static void printNetwork() {
+    private void printNetwork() {
         for (Intersection i: inters) {
-            System.out.println( i.toString() );
+            sim.output().println( i.toString() );
+        }
+        for (Road r: roads) {
+            sim.output().println( r.toString() );
+        }
+    }
+
+    // Make sure the simulation ends cleanly when the user interrupts it,
+    // so that end-of-run reports are still output
+    private void stopOnInterrupt() {
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook( new Thread( ()-> {
+            ResultCache.abandon();
+            sim.stop();
+            try {
+                main.join( 1000 );
+            } catch (InterruptedException e) {
+                // Give up waiting, the JVM is going down anyway
+            }
+        } ) );
+    }
+
+    // Get the positive number that follows option args[i]
+    private static double optionValue( String[] args, int i ) {
+        if (i + 1 >= args.length) {
+            Errors.fatal( "Missing value for option " + args[i] );
+        }
+        double value = 0.0;
+        try {
+            value = Double.parseDouble( args[i + 1] );
+        } catch (NumberFormatException e) {
+            Errors.fatal( "Number expected for option " + args[i] );
+        }
+        if (!(value > 0.0)) {
+            Errors.fatal( "Positive value expected for option " + args[i] );
+        }
+        return value;
+    }
+
+    // Options given on the command line or to a job
+    private static class Options {
+        boolean profile = false;
+        boolean quiet = false;
+        boolean checkOnly = false;
+        double precision = 0.0;
+        double binWidth = 1.0;
+        float until = Float.POSITIVE_INFINITY;
+        long seed = 5;
+        int partition = 0;
+        String partitions = null;
+        String demandName = null;
+        String cacheName = null;
+        long cacheSize = 256L * 1024 * 1024;
+    }
+
+    // The options of the simulation at hand
+    private Options options = new Options();
+
+    // Take note of the options, returning the file name if there is one.
+    // Options not given keep their defaults, whatever an earlier job gave.
+    private String readOptions( String[] args ) {
+        options = new Options();
+        String fileName = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-profile".equals( arg )) {
+                options.profile = true;
+            } else if ("-quiet".equals( arg )) {
+                options.quiet = true;
+            } else if ("-check".equals( arg )) {
+                options.checkOnly = true;
+            } else if ("-precision".equals( arg )) {
+                options.precision = optionValue( args, i );
+                i = i + 1;
+            } else if ("-binwidth".equals( arg )) {
+                options.binWidth = optionValue( args, i );
+                i = i + 1;
+            } else if ("-until".equals( arg )) {
+                options.until = (float) optionValue( args, i );
+                i = i + 1;
+            } else if ("-partition".equals( arg )) {
+                if (i + 2 >= args.length) {
+                    Errors.fatal( "Missing values for option " + arg );
+                }
+                try {
+                    options.partition = Integer.parseInt( args[i + 1] );
+                    options.partitions = args[i + 2];
+                } catch (NumberFormatException e) {
+                    Errors.fatal( "Partition number expected: " + args[i + 1] );
+                }
+                i = i + 2;
+            } else if ("-seed".equals( arg )) {
+                if (i + 1 >= args.length) {
+                    Errors.fatal( "Missing value for option " + arg );
+                }
+                try {
+                    options.seed = Long.parseLong( args[i + 1] );
+                } catch (NumberFormatException e) {
+                    Errors.fatal( "Integer expected for option " + arg );
+                }
+                i = i + 1;
+            } else if ("-cache".equals( arg )) {
+                if (i + 1 >= args.length) {
+                    Errors.fatal( "Missing value for option " + arg );
+                }
+                options.cacheName = args[i + 1];
+                i = i + 1;
+            } else if ("-cachesize".equals( arg )) {
+                options.cacheSize = (long) optionValue( args, i );
+                i = i + 1;
+            } else if ("-demand".equals( arg )) {
+                if (i + 1 >= args.length) {
+                    Errors.fatal( "Missing value for option " + arg );
+                }
+                options.demandName = args[i + 1];
+                i = i + 1;
+            } else if (arg.startsWith( "-" )) {
+                Errors.fatal( "Unknown option: " + arg );
+            } else if (fileName != null) {
+                Errors.fatal( "Too many arguments" );
+            } else {
+                fileName = arg;
+            }
+        }
+        return fileName;
+    }
+
+    // Open an input file
+    private static Scanner open( String name ) throws FileNotFoundException {
+        return new Scanner( new FileInputStream( name ) );
+    }
+
+    // When results are cached, each part of the model goes into the key
+    // of the result as it is read, in the form the network is printed in.
+    // Parts later pruned count too, since they can change the output.
+    private void describe( Object part ) {
+        if (options.cacheName != null) ResultCache.describe( part.toString() );
+    }
+
+    // Describe what determines the result of a simulation besides its
+    // input: the options and the seed
+    private String description() {
+        StringBuilder s = new StringBuilder();
+        s.append( "seed " ).append( options.seed ).append( '\n' );
+        s.append( "until " ).append( options.until ).append( '\n' );
+        s.append( "precision " ).append( options.precision ).append( '\n' );
+        s.append( "binwidth " ).append( options.binWidth ).append( '\n' );
+        s.append( "quiet " ).append( options.quiet ).append( '\n' );
+        return s.toString();
+    }
+
+    // Read and check a road network, and its demand file if there is one.
+    // If there are errors the network is output, and false returned.
+    private boolean read( Scanner sc ) {
+        readNetwork( sc );
+        if (options.demandName != null) try {
+            readDemand( open( options.demandName ) );
+        } catch (FileNotFoundException e) {
+            Errors.fatal( "Can't open the demand file" );
+        }
+        if (Errors.count() == 0) {
+            checkNetwork();
         }
+        if (Errors.count() != 0) {
+            printNetwork();
+            return false;
+        }
+        return true;
+    }
+
+    // Simulate the road network, which has been read and checked, as the
+    // options say
+    private void run( boolean interruptible ) {
+        // Profiles and partitioned runs are not repeatable, so never cached
+        if ((options.cacheName != null)
+        &&  !options.profile && !Partition.distributed()) {
+            ResultCache.enable( options.cacheName, options.cacheSize );
+            String key = ResultCache.key( description() );
+            if (ResultCache.replay( key, sim )) return;
+            ResultCache.record( key, sim );
+        }
+        sim.prng.seed( options.seed );
         for (Road r: roads) {
-            System.out.println( r.toString() );
+            r.start();
+        }
+        for (Intersection i: inters) {
+            i.start();
+        }
+        if (options.quiet) {
+            sim.quiet();
+        }
+        if (options.profile) {
+            sim.enableProfiling();
+        }
+        if (options.precision > 0.0) {
+            sim.statistics().enable( options.precision, options.binWidth );
+        }
+        if (interruptible
+        &&  (options.profile || sim.statistics().enabled()
+            || ResultCache.enabled())) {
+            stopOnInterrupt();
+        }
+        if (Partition.distributed()) {
+            Partition.run( sim, options.until );
+        } else {
+            sim.run( options.until );
+        }
+        sim.statistics().report();
+        ResultCache.store( sim );
+    }
+
+    // Start a job of a long running service, sending all its output and
+    // messages to out, and counting its errors from zero
+    private void begin( PrintStream out ) {
+        Errors.reset();
+        Errors.redirect( out );
+        Errors.throwOnFatal();
+        sim.reset();
+        sim.redirect( out );
+    }
+
+    // Take note of the options of a job, which are those of the main
+    // program less those that name files, or that only one simulation in
+    // the process can use at a time
+    private void readJobOptions( String[] args ) {
+        if (readOptions( args ) != null) {
+            Errors.fatal( "Jobs take no file name" );
+        }
+        if ((options.partitions != null) || (options.demandName != null)
+        ||  (options.cacheName != null)) {
+            Errors.fatal( "Jobs can't use -partition, -demand or -cache" );
+        }
+    }
+
+    /** Read and check a road network for a long running service, which
+     *  then simulates it in any number of jobs.
+     *  @param network the description of the road network
+     *  @param out where all output and messages go
+     *  @return the network, or null if there were errors
+     *  @see Service
+     */
+    public static RoadNetwork model( String network, PrintStream out ) {
+        RoadNetwork net = new RoadNetwork();
+        net.begin( out );
+        boolean good = false;
+        try {
+            good = net.read( new Scanner( network ) );
+        } catch (Errors.Fatal e) {
+            // Already reported
         }
+        out.flush();
+        return good ? net : null;
+    }
+
+    /** Simulate this road network as a job of a long running service.
+     *  <p>
+     *  The network must have been read and checked by model(), and no
+     *  other job may simulate it at the same time.  It can be simulated
+     *  again once this returns.  Options are the same as for the main
+     *  program, except that there is no file name, and -partition, -demand
+     *  and -cache are not allowed.
+     *  @param args the options
+     *  @param out where all output and messages go
+     *  @return the number of errors reported
+     *  @see Service
+     */
+    public int job( String[] args, PrintStream out ) {
+        begin( out );
+        try {
+            readJobOptions( args );
+            if (!options.checkOnly) run( false );
+        } catch (Errors.Fatal e) {
+            // Already reported, the job just ends without its result
+        }
+        out.flush();
+        return Errors.count();
+    }
+
+    /** Ask the job simulating this network to stop early.
+     *  This may be called from any thread.
+     */
+    public void stop() {
+        sim.stop();
     }
 
     /** Main program.
-     *  The only command line argument expected is the file name of a
-     *  file that holds the description of a road network.
+     *  The command line arguments are optional options followed by the
+     *  file name of a file that holds the description of a road network.
+     *  The options are:
+     *  <ul>
+     *  <li>-profile report where the simulation spends its time
+     *  <li>-quiet do not output what every vehicle does
+     *  <li>-check only read and check the network, do not simulate it
+     *  <li>-until t end the simulation at time t
+     *  <li>-precision p gather statistics and stop the simulation once
+     *  their confidence intervals are within p times their means
+     *  <li>-binwidth w measure throughput in time bins of width w
+     *  <li>-partition i addresses simulate only partition i, where the
+     *  addresses are host:port pairs of all partitions, comma separated
+     *  <li>-seed n seed random numbers with n instead of 5
+     *  <li>-cache dir keep results in dir and replay them when the same
+     *  network is simulated again with the same options and seed
+     *  <li>-cachesize bytes how much the kept results may use
+     *  <li>-demand file read demand profiles and the sources that follow
+     *  them from a file, after the network is read
+     *  </ul>
      *  @param args holds the command line arguments
      */
     public static void main( String[] args ) {
-        if (args.length < 1) {
+        RoadNetwork net = new RoadNetwork();
+        String fileName = net.readOptions( args );
+        if (net.options.partitions != null) {
+            Partition.configure(
+                net.options.partition, net.options.partitions
+            );
+        }
+        if (fileName == null) {
             Errors.fatal( "Missing file name argument" );
-        } else if (args.length > 1) {
-            Errors.fatal( "Too many arguments" );
         } else try {
-            readNetwork( new Scanner( new File( args[0] ) ) );
-            if (Errors.count() == 0) {
-                Simulator.run();
-            } else {
-                printNetwork();
+            if (net.read( open( fileName ) ) && !net.options.checkOnly) {
+                net.run( true );
             }
         } catch (FileNotFoundException e) {
             Errors.fatal( "Can't open the file" );
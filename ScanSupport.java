@@ -23,6 +23,8 @@ public class ScanSupport {
     // Patterns needed for scanning
     private static final Pattern name
     = Pattern.compile( "[a-zA-Z0-9_]*" );
+    private static final Pattern word
+    = Pattern.compile( "[a-zA-Z_][a-zA-Z0-9_]*|" );
     private static final Pattern intPattern
     = Pattern.compile( "-?[0-9][0-9]*|");
     private static final Pattern floatPattern
@@ -61,6 +63,18 @@ public class ScanSupport {
         return s;
     }
 
+    /** Get next word if there is one, without complaint if there isn't.
+     *  Words are names that do not start with a digit, so they can be
+     *  told apart from numbers.
+     *  @param sc the scanner from which the word is scanned
+     *  @return the word, or the empty string if there was none
+     */
+    public static String nextWordIfAny( Scanner sc ) {
+        sc.skip( whitespace );
+        sc.skip( word );
+        return sc.match().group();
+    }
+
     /** Get next int without skipping to next line (unlike sc.nextInt()).
      *  @param sc the scanner from which end of line is scanned
      *  @param m gives the message to output if there was no int
@@ -0,0 +1,326 @@
+// Service.java
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Service.java
+ *  A long running local HTTP service that simulates road networks.
+ *  <p>
+ *  Networks are uploaded once, then read and checked into models that
+ *  are kept in memory.  Each simulation job names a network, gives
+ *  options as query parameters and may give override lines in its body.
+ *  A job takes a model of its network that no other job is simulating,
+ *  resets it and simulates it, then gives it back for later jobs, so
+ *  networks are not read again and all jobs run the same code, which the
+ *  JIT has compiled for the jobs before them.  Another model of a network
+ *  is read only when all of them are busy.  A job with override lines
+ *  reads the network with them into a model of its own.
+ *  Requests are handled by a pool of threads that mostly wait, while
+ *  jobs run on a pool no bigger than the number of processors.  Output
+ *  is streamed back as the job produces it, and its last line says
+ *  whether the job succeeded.  A job whose client goes away is stopped.
+ *  <p>
+ *  The requests are:
+ *  <ul>
+ *  <li>PUT /networks/name with the network description as the body
+ *  <li>GET /networks lists the networks
+ *  <li>DELETE /networks/name forgets a network
+ *  <li>POST /networks/name/run?option=value... runs a job, where the
+ *  options are until, precision, binwidth, profile and quiet as on the
+ *  command line, and until must be given so it ends
+ *  </ul>
+ *  Override lines are in the input format.  An intersection or road line
+ *  replaces the network's line for the same intersection or road, a line
+ *  "close a b" removes the roads from a to b, others are added at the end.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see RoadNetwork
+ */
+public class Service {
+
+    // An uploaded network: its description, the messages from checking
+    // it, which each job outputs again, and models of it that no job is
+    // simulating
+    private static class Network {
+        final String text;
+        final byte[] notes;
+        final ConcurrentLinkedQueue <RoadNetwork> idle
+        = new ConcurrentLinkedQueue <> ();
+
+        Network( String text, byte[] notes, RoadNetwork model ) {
+            this.text = text;
+            this.notes = notes;
+            idle.add( model );
+        }
+    }
+
+    // The networks, by name
+    private static final ConcurrentHashMap <String, Network> networks
+    = new ConcurrentHashMap <> ();
+
+    // Where jobs run
+    private static final ExecutorService jobs = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors()
+    );
+
+    // Options jobs may give, and whether each takes a value
+    private static final String[] valued = { "until", "precision", "binwidth" };
+    private static final String[] flags = { "profile", "quiet" };
+
+    // Output stream that runs an action when writing to it fails
+    private static class Watched extends FilterOutputStream {
+        private final Runnable failed;
+
+        Watched( OutputStream out, Runnable failed ) {
+            super( out );
+            this.failed = failed;
+        }
+
+        public void write( int b ) throws IOException {
+            try {
+                out.write( b );
+            } catch (IOException e) {
+                failed.run();
+                throw e;
+            }
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            try {
+                out.write( b, off, len );
+            } catch (IOException e) {
+                failed.run();
+                throw e;
+            }
+        }
+
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed.run();
+                throw e;
+            }
+        }
+    }
+
+    // Run a job on network n, with override lines unless there are none,
+    // output goes to out.  The simulation is stopped if output can't be
+    // written, as when the client has gone away.
+    private static int job(
+        Network n, String overrides, String[] args, OutputStream out
+    ) throws IOException {
+        // The model the job simulates, once it has one
+        RoadNetwork[] model = new RoadNetwork[1];
+        OutputStream watched = new Watched( out, ()-> {
+            if (model[0] != null) model[0].stop();
+        } );
+        PrintStream stream = new PrintStream( watched, false, "UTF-8" );
+        if (!overrides.trim().isEmpty()) {
+            String text = override( n.text, overrides );
+            model[0] = RoadNetwork.model( text, stream );
+            if (model[0] == null) return Errors.count();
+            return model[0].job( args, stream );
+        }
+        model[0] = n.idle.poll();
+        if (model[0] == null) {
+            // Every model is busy, its messages are those of the others
+            model[0] = RoadNetwork.model( n.text, new PrintStream(
+                OutputStream.nullOutputStream()
+            ) );
+        }
+        stream.write( n.notes );
+        int errors = model[0].job( args, stream );
+        n.idle.add( model[0] );
+        return errors;
+    }
+
+    // Key that identifies what an input line describes, or null if none
+    private static String key( String line ) {
+        String[] words = line.trim().split( "\\s+" );
+        if ((words.length >= 2) && "intersection".equals( words[0] )) {
+            return "intersection " + words[1];
+        }
+        if ((words.length >= 3)
+        &&  ("road".equals( words[0] ) || "close".equals( words[0] ))) {
+            return "road " + words[1] + " " + words[2];
+        }
+        return null;
+    }
+
+    // Apply override lines to a network description
+    private static String override( String network, String overrides ) {
+        ArrayList <String> lines = new ArrayList <> ();
+        for (String line: network.split( "\n" )) lines.add( line );
+        for (String line: overrides.split( "\n" )) {
+            if (line.trim().isEmpty()) continue;
+            String k = key( line );
+            boolean close = line.trim().startsWith( "close" );
+            boolean replaced = false;
+            for (int i = 0; (k != null) && (i < lines.size()); i++) {
+                if (!k.equals( key( lines.get( i ) ) )) continue;
+                if (close) {
+                    lines.remove( i );
+                    i = i - 1;
+                } else {
+                    lines.set( i, line );
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!close && !replaced) lines.add( line );
+        }
+        return String.join( "\n", lines ) + "\n";
+    }
+
+    // Turn query parameters into command line options, null if bad ones.
+    // Statistics may never become precise enough to stop a simulation,
+    // so an end time is always required.
+    private static String[] options( String query ) {
+        ArrayList <String> args = new ArrayList <> ();
+        boolean ends = false;
+        if (query == null) query = "";
+        for (String param: query.split( "&" )) {
+            if (param.isEmpty()) continue;
+            int eq = param.indexOf( '=' );
+            String name = (eq < 0) ? param : param.substring( 0, eq );
+            String value = (eq < 0) ? "" : param.substring( eq + 1 );
+            boolean known = false;
+            for (String v: valued) {
+                if (v.equals( name ) && !value.isEmpty()) {
+                    args.add( "-" + name );
+                    args.add( value );
+                    known = true;
+                }
+            }
+            for (String f: flags) {
+                if (f.equals( name )) {
+                    args.add( "-" + name );
+                    known = true;
+                }
+            }
+            if (!known) return null;
+            if ("until".equals( name )) ends = true;
+        }
+        if (!ends) return null;
+        return args.toArray( new String[0] );
+    }
+
+    // Send a short complete response
+    private static void respond( HttpExchange x, int status, String text )
+            throws IOException {
+        byte[] body = text.getBytes( StandardCharsets.UTF_8 );
+        x.getResponseHeaders().set( "Content-Type", "text/plain" );
+        x.sendResponseHeaders( status, (body.length == 0) ? -1 : body.length );
+        if (body.length > 0) x.getResponseBody().write( body );
+        x.close();
+    }
+
+    // Handle one request
+    private static void handle( HttpExchange x ) throws IOException {
+        try {
+            String method = x.getRequestMethod();
+            String[] path = x.getRequestURI().getPath().split( "/" );
+            String body = new String(
+                x.getRequestBody().readAllBytes(), StandardCharsets.UTF_8
+            );
+            if ((path.length == 2) && "GET".equals( method )) {
+                respond( x, 200, String.join( "\n", networks.keySet() ) );
+            } else if ((path.length == 3) && "PUT".equals( method )) {
+                // Read and check the network in a job before keeping it
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                RoadNetwork model = jobs.submit(
+                    ()-> RoadNetwork.model( body, new PrintStream(
+                        out, false, "UTF-8"
+                    ) )
+                ).get();
+                if (model != null) networks.put( path[2], new Network(
+                    body, out.toByteArray(), model
+                ) );
+                respond( x, (model != null) ? 200 : 422,
+                    out.toString( StandardCharsets.UTF_8 )
+                );
+            } else if ((path.length == 3) && "DELETE".equals( method )) {
+                boolean found = networks.remove( path[2] ) != null;
+                respond( x, found ? 200 : 404, "" );
+            } else if ((path.length == 4) && "run".equals( path[3] )
+                   &&  "POST".equals( method )) {
+                Network network = networks.get( path[2] );
+                String[] args = options( x.getRequestURI().getRawQuery() );
+                if (network == null) {
+                    respond( x, 404, "No such network: " + path[2] + "\n" );
+                } else if (args == null) {
+                    respond( x, 400,
+                        "Options are until, precision, binwidth, profile"
+                        + " and quiet, until is required\n"
+                    );
+                } else {
+                    x.getResponseHeaders().set( "Content-Type", "text/plain" );
+                    x.sendResponseHeaders( 200, 0 );
+                    OutputStream out = x.getResponseBody();
+                    Future <Integer> f = jobs.submit(
+                        ()-> job( network, body, args, out )
+                    );
+                    String status;
+                    try {
+                        int errors = f.get();
+                        status = (errors == 0)
+                               ? "job done"
+                               : "job failed, " + errors + " errors";
+                    } catch (ExecutionException e) {
+                        status = "job failed";
+                    }
+                    // The last line tells the client how the job ended
+                    out.write( ("RoadNetwork: " + status + "\n").getBytes(
+                        StandardCharsets.UTF_8
+                    ) );
+                    x.close();
+                }
+            } else {
+                respond( x, 404, "" );
+            }
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            // Headers may already be sent, so just end the response
+            x.close();
+        }
+    }
+
+    /** Main program.
+     *  The only command line argument is the port to listen on, which is
+     *  only reachable from this machine.
+     *  @param args holds the command line arguments
+     */
+    public static void main( String[] args ) {
+        if (args.length != 1) {
+            Errors.fatal( "Port number expected" );
+        }
+        try {
+            HttpServer server = HttpServer.create(
+                new InetSocketAddress(
+                    "localhost", Integer.parseInt( args[0] )
+                ), 0
+            );
+            server.createContext( "/networks", Service::handle );
+            server.setExecutor( Executors.newCachedThreadPool() );
+            server.start();
+        } catch (NumberFormatException e) {
+            Errors.fatal( "Port number expected: " + args[0] );
+        } catch (IOException e) {
+            Errors.fatal( "Can't start service: " + e.getMessage() );
+        }
+    }
+}
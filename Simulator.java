@@ -1,14 +1,79 @@
 // Simulator.java
 
-import java.util.PriorityQueue;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /** Framework for discrete event simulation.
+ *  <p>
+ *  Each simulator holds everything that changes as a simulation runs:
+ *  its event set, its vehicles, random numbers and statistics.  The
+ *  roads and intersections of a model schedule their events in the one
+ *  simulator they belong to, which can be reset to run the same model
+ *  again, while other simulators run in other threads.
+ *  <p>
+ *  Events due at the same time share one entry in the queue, an instant
+ *  holding all of them, so synchronized events cost one queue operation
+ *  between them.  Instants are found by their time in a hash table when
+ *  events are scheduled.  The events of an instant are dispatched
+ *  together, in a fixed order by the rank of their kind and then by the
+ *  number of the entity each acts on.  Events scheduled by them for that
+ *  same time form a new instant, dispatched next.
  *  @author Douglas W. Jones
  *  @author Piotr Smietana
  *  @version 2019-03-31
+ *  @see Profiler
  */
 public class Simulator {
 
+    /** Things that events act on.
+     *  Entities are numbered, so that events happening at the same time
+     *  can be dispatched in a fixed order.
+     */
+    public interface Entity {
+        /** Get the number of this entity among those of its kind.
+         *  @return the number
+         */
+        int number();
+    }
+
+    /** Kinds of events.
+     *  Events due at the same time are dispatched in order of the rank of
+     *  their kind, lowest first.
+     */
+    public static final class Kind {
+        /** Name of this kind, for example "departure".
+         */
+        public final String name;
+
+        /** Rank of this kind, from 0 to MAX_RANK.
+         */
+        public final int rank;
+
+        /** Construct a kind of event.
+         *  @param name the name
+         *  @param rank the rank
+         */
+        public Kind( String name, int rank ) {
+            if ((rank < 0) || (rank > MAX_RANK)) {
+                throw new IllegalArgumentException( "rank " + rank );
+            }
+            this.name = name;
+            this.rank = rank;
+        }
+
+        /** Get the name of this kind.
+         *  @return the name
+         */
+        public String toString() {
+            return name;
+        }
+    }
+
+    /** The highest rank a kind of event may have.
+     */
+    public static final int MAX_RANK = 127;
+
     /** Class Event used for simulation.
      */
     public static abstract class Event {
@@ -16,35 +81,449 @@ public class Simulator {
          */
         protected final float time;
 
+        /** What kind of event this is.
+         */
+        public final Kind kind;
+
+        /** The road or intersection this event acts on, or null.
+         */
+        public final Entity target;
+
         // Event constructor
-        Event( float t ) {
+        Event( float t, Kind k, Entity o ) {
             time = t;
+            kind = k;
+            target = o;
         }
 
         // Each subclass must define how to trigger it
         abstract void trigger();
     }
 
-    // Queue with all events
-    private static PriorityQueue <Event> eventSet
-            = new PriorityQueue <> (
-                    (Event e1, Event e2) -> Float.compare( e1.time, e2.time )
-    );
+    // Instants, all the events due at one time, are numbered, and kept
+    // by number in these columns: the time, the events, of which the
+    // first size are in use.  Numbers of spent instants are kept for reuse.
+    private float[] instantTimes = new float[64];
+    private Event[][] instantEvents = new Event[64][];
+    private int[] instantSizes = new int[64];
+    private int[] spares = new int[64];
+    private int spareCount = 0;
+    private int created = 0;
+
+    // Queue of instants ordered by time, a binary heap of instant numbers
+    // with the time of each kept beside it
+    private int[] queue = new int[64];
+    private float[] queueTimes = new float[64];
+    private int queued = 0;
+
+    // The instants in the queue by time, in an open addressing hash table
+    // with linear probing, again with the times beside them; empty slots
+    // hold -1.  How many bits of the hash index the table
+    private int[] byTime = newTable( 1024 );
+    private float[] slotTimes = new float[1024];
+    private int shift = 32 - 10;
+
+    // The size up to which instants are sorted by insertion
+    private static final int SMALL = 8;
+
+    // For larger instants, the sort key of each event and the events
+    // as reordered by those keys
+    private long[] keys = new long[16];
+    private Event[] sorted = new Event[16];
+
+    // The order in which events at one time are dispatched: by rank of
+    // kind, then by the number of the entity acted on
+    private static final Comparator <Event> order = (Event e1, Event e2) -> {
+        if (e1.kind.rank != e2.kind.rank) {
+            return Integer.compare( e1.kind.rank, e2.kind.rank );
+        }
+        int n1 = (e1.target == null) ? -1 : e1.target.number();
+        int n2 = (e2.target == null) ? -1 : e2.target.number();
+        return Integer.compare( n1, n2 );
+    };
+
+    // Set when the simulation should end even though events remain
+    private volatile boolean stopping = false;
+
+    // Should run() profile the events it triggers, and what profiles them
+    private boolean profiling = false;
+    private Profiler profiler = null;
+
+    // Where the simulation writes its output, and does that include what
+    // every vehicle does
+    private PrintStream output = System.out;
+    private boolean tracing = true;
+
+    /** The vehicles in the simulation.
+     */
+    public final Vehicles vehicles = new Vehicles();
+
+    /** Where the simulation gets random numbers.
+     */
+    public final PRNG prng = new PRNG();
+
+    // Statistics of the simulation
+    private Statistics statistics = new Statistics( this );
+
+    // An empty hash table of some size
+    private static int[] newTable( int size ) {
+        int[] table = new int[size];
+        Arrays.fill( table, -1 );
+        return table;
+    }
+
+    // Where in byTime the search for an instant at time t starts.
+    // Adding zero turns -0.0 into 0.0, which is the same time.
+    private int home( float t ) {
+        return (Float.floatToRawIntBits( t + 0.0F ) * 0x9E3779B9) >>> shift;
+    }
 
     /** Schedule one new event.
      *  @param e the event to schedule
      */
-    public static void schedule( Event e ) {
-        eventSet.add( e );
+    public void schedule( Event e ) {
+        float t = e.time;
+        int mask = byTime.length - 1;
+        int i = home( t );
+        int n;
+        while ((n = byTime[i]) >= 0) {
+            if (slotTimes[i] == t) {
+                add( n, e );
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        n = newInstant( t );
+        add( n, e );
+        byTime[i] = n;
+        slotTimes[i] = t;
+        push( n, t );
+        if (2 * queued > byTime.length) rehash();
+    }
+
+    // Get an empty instant at time t, a spare one if there is one
+    private int newInstant( float t ) {
+        int n;
+        if (spareCount > 0) {
+            spareCount = spareCount - 1;
+            n = spares[spareCount];
+        } else {
+            if (created == instantTimes.length) {
+                int size = 2 * created;
+                instantTimes = Arrays.copyOf( instantTimes, size );
+                instantEvents = Arrays.copyOf( instantEvents, size );
+                instantSizes = Arrays.copyOf( instantSizes, size );
+                spares = Arrays.copyOf( spares, size );
+            }
+            n = created;
+            created = created + 1;
+            instantEvents[n] = new Event[4];
+        }
+        instantTimes[n] = t;
+        return n;
+    }
+
+    // Add an event to instant n
+    private void add( int n, Event e ) {
+        Event[] events = instantEvents[n];
+        int size = instantSizes[n];
+        if (size == events.length) {
+            events = Arrays.copyOf( events, 2 * size );
+            instantEvents[n] = events;
+        }
+        events[size] = e;
+        instantSizes[n] = size + 1;
+    }
+
+    // Keep instant n, whose events have all been triggered, for reuse
+    private void recycle( int n ) {
+        int size = instantSizes[n];
+        if (size == 1) {
+            instantEvents[n][0] = null;
+        } else {
+            Arrays.fill( instantEvents[n], 0, size, null );
+        }
+        instantSizes[n] = 0;
+        spares[spareCount] = n;
+        spareCount = spareCount + 1;
+    }
+
+    // Add instant n at time t to the queue
+    private void push( int n, float t ) {
+        if (queued == queue.length) {
+            queue = Arrays.copyOf( queue, 2 * queued );
+            queueTimes = Arrays.copyOf( queueTimes, 2 * queued );
+        }
+        int i = queued;
+        queued = queued + 1;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (queueTimes[parent] <= t) break;
+            queue[i] = queue[parent];
+            queueTimes[i] = queueTimes[parent];
+            i = parent;
+        }
+        queue[i] = n;
+        queueTimes[i] = t;
+    }
+
+    // Remove the earliest instant from the queue, which must not be empty
+    private int pop() {
+        int first = queue[0];
+        queued = queued - 1;
+        int n = queue[queued];
+        float t = queueTimes[queued];
+        if (queued > 0) {
+            int i = 0;
+            int half = queued >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                float ct = queueTimes[child];
+                if ((child + 1 < queued) && (queueTimes[child + 1] < ct)) {
+                    child = child + 1;
+                    ct = queueTimes[child];
+                }
+                if (t <= ct) break;
+                queue[i] = queue[child];
+                queueTimes[i] = ct;
+                i = child;
+            }
+            queue[i] = n;
+            queueTimes[i] = t;
+        }
+        return first;
+    }
+
+    // Double the size of byTime
+    private void rehash() {
+        int[] old = byTime;
+        float[] oldTimes = slotTimes;
+        byTime = newTable( 2 * old.length );
+        slotTimes = new float[2 * old.length];
+        shift = shift - 1;
+        int mask = byTime.length - 1;
+        for (int j = 0; j < old.length; j++) {
+            if (old[j] < 0) continue;
+            int i = home( oldTimes[j] );
+            while (byTime[i] >= 0) i = (i + 1) & mask;
+            byTime[i] = old[j];
+            slotTimes[i] = oldTimes[j];
+        }
+    }
+
+    // Take the first instant from the queue, no later events can join it
+    private int take() {
+        int n = pop();
+        int mask = byTime.length - 1;
+        float t = instantTimes[n];
+        int i = home( t );
+        while (byTime[i] != n) i = (i + 1) & mask;
+        byTime[i] = -1;
+        // Move later entries of the same run back into the gap, unless
+        // their search starts after the gap, in (i, j] cyclically
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int m = byTime[j];
+            if (m < 0) return n;
+            int k = home( slotTimes[j] );
+            boolean stays
+                = (i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j));
+            if (!stays) {
+                byTime[i] = m;
+                slotTimes[i] = slotTimes[j];
+                byTime[j] = -1;
+                i = j;
+            }
+        }
+    }
+
+    /** Get ready to simulate again.
+     *  Pending events are dropped and vehicles removed, statistics and
+     *  profiling start over, and output goes to the standard output
+     *  again, including what every vehicle does.
+     */
+    public void reset() {
+        while (queued > 0) recycle( take() );
+        stopping = false;
+        profiling = false;
+        profiler = null;
+        output = System.out;
+        tracing = true;
+        vehicles.reset();
+        statistics = new Statistics( this );
+    }
+
+    /** Get the statistics gathered by the simulation.
+     *  @return the statistics
+     */
+    public Statistics statistics() {
+        return statistics;
+    }
+
+    /** Send the output of the simulation somewhere else.
+     *  @param s where output goes
+     */
+    public void redirect( PrintStream s ) {
+        output = s;
+    }
+
+    /** Get where the output of the simulation goes.
+     *  @return the stream
+     */
+    public PrintStream output() {
+        return output;
+    }
+
+    /** Stop reporting what every vehicle does.
+     */
+    public void quiet() {
+        tracing = false;
+    }
+
+    /** Should what every vehicle does be output.
+     *  @return true if it should
+     */
+    public boolean tracing() {
+        return tracing;
+    }
+
+    /** Turn on self profiling, reported when run() ends.
+     */
+    public void enableProfiling() {
+        profiling = true;
+        profiler = new Profiler();
+        profiler.begin();
+    }
+
+    /** Ask run() to return before the events of the next instant are
+     *  triggered.
+     *  This may be called from any thread.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /** Has the simulation been asked to stop.
+     *  @return true if it has
+     */
+    public boolean stopped() {
+        return stopping;
+    }
+
+    /** Get the time of the next event.
+     *  @return the time, or infinity if there are no events
+     */
+    public float nextTime() {
+        if (queued == 0) return Float.POSITIVE_INFINITY;
+        return queueTimes[0];
     }
 
     /** Main loop that runs the simulation.
      *  This must be called after all initial events are scheduled.
      */
-    public static void run() {
-        while (!eventSet.isEmpty()) {
-            Event e = eventSet.remove();
-            e.trigger();
+    public void run() {
+        run( Float.POSITIVE_INFINITY );
+    }
+
+    /** Main loop that runs the simulation up to some time.
+     *  This must be called after all initial events are scheduled.
+     *  @param end the time at which to end the simulation
+     */
+    public void run( float end ) {
+        runUntil( end );
+        finish();
+    }
+
+    /** Trigger all events that happen before some time.
+     *  Later events stay scheduled, so this may be called repeatedly
+     *  with increasing end times to run the simulation in steps.
+     *  @param end the time at which to pause the simulation
+     */
+    public void runUntil( float end ) {
+        if (profiling) {
+            runProfiled( end );
+            return;
+        }
+        while ((queued > 0) && !stopping && (queueTimes[0] < end)) {
+            int n = take();
+            if (instantSizes[n] == 1) {
+                Event e = instantEvents[n][0];
+                recycle( n );
+                e.trigger();
+            } else {
+                order( n );
+                Event[] events = instantEvents[n];
+                for (int i = 0; i < instantSizes[n]; i++) {
+                    events[i].trigger();
+                }
+                recycle( n );
+            }
+        }
+    }
+
+    // Variant of the main loop that reports each event to the profiler
+    private void runProfiled( float end ) {
+        while ((queued > 0) && !stopping && (queueTimes[0] < end)) {
+            int n = take();
+            order( n );
+            Event[] events = instantEvents[n];
+            for (int i = 0; i < instantSizes[n]; i++) {
+                profiler.trigger( events[i] );
+            }
+            recycle( n );
+        }
+    }
+
+    // Put the events of an instant in the fixed order
+    private void order( int n ) {
+        Event[] events = instantEvents[n];
+        int size = instantSizes[n];
+        if (size <= SMALL) {
+            // Most instants are small, so sort them by insertion
+            for (int i = 1; i < size; i++) {
+                Event e = events[i];
+                int j = i;
+                while ((j > 0) && (order.compare( e, events[j - 1] ) < 0)) {
+                    events[j] = events[j - 1];
+                    j = j - 1;
+                }
+                events[j] = e;
+            }
+        } else if (size > (1 << 24)) {
+            // Too many to pack into keys, so rare it need not be fast
+            Arrays.sort( events, 0, size, order );
+        } else {
+            // Comparing events one pair at a time looks up their kinds and
+            // numbers over and over, so instead each event's rank, number
+            // and place are packed once into a key, 7, 32 and 24 bits from
+            // the top, and the keys are sorted
+            if (keys.length < size) {
+                keys = new long[events.length];
+                sorted = new Event[events.length];
+            }
+            for (int i = 0; i < size; i++) {
+                Event e = events[i];
+                long k = (e.target == null) ? 0 : e.target.number() + 1L;
+                keys[i] = ((long) e.kind.rank << 56) | (k << 24) | i;
+            }
+            Arrays.sort( keys, 0, size );
+            for (int i = 0; i < size; i++) {
+                sorted[i] = events[(int) (keys[i] & 0xFFFFFF)];
+            }
+            System.arraycopy( sorted, 0, events, 0, size );
+            Arrays.fill( sorted, 0, size, null );
+        }
+    }
+
+    /** Report on the simulation, called once after it ends.
+     */
+    public void finish() {
+        if (!profiling) return;
+        int pending = 0;
+        for (int i = 0; i < queued; i++) {
+            pending = pending + instantSizes[queue[i]];
         }
+        profiler.report( pending );
     }
 }
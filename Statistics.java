@@ -0,0 +1,301 @@
+// Statistics.java
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/** Output statistics gathered while the simulation runs.
+ *  <p>
+ *  Each measure is kept as a series of observations.  Throughput is
+ *  observed once per time bin, trip time once per vehicle.  Observations
+ *  are not kept one by one but as the means of batches of a fixed size,
+ *  and when too many batches are kept, neighbouring ones are merged, so
+ *  memory stays bounded however long the simulation runs.  The start of
+ *  each series is distorted by the empty network the simulation starts
+ *  with, so the MSER-5 rule is used on the batch means to find where this
+ *  warm-up transient ends and it is discarded.  Confidence intervals on
+ *  the rest come from the method of batch means.  When a precision is
+ *  requested, the simulation stops as soon as every measure is known that
+ *  precisely.  Each simulation gathers statistics of its own.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Simulator
+ */
+public class Statistics {
+
+    /** One series of observations of some measure.
+     */
+    public static class Series {
+        // Used to describe this series in reports
+        private final String name;
+        private final String units;
+        // Means of batches of observations, the first n entries are in
+        // use, and how many observations go into each
+        private double[] values = new double[1024];
+        private int n = 0;
+        private int batch;
+        // Sum of the observations in the batch being filled, and how many
+        private double sum = 0.0;
+        private int filled = 0;
+        // How many observations there have been
+        private long count = 0;
+
+        /** Construct an empty series.
+         *  @param name what the series measures
+         *  @param units the units of each observation
+         *  @param batch how many observations to keep the mean of at first
+         */
+        public Series( String name, String units, int batch ) {
+            this.name = name;
+            this.units = units;
+            this.batch = batch;
+        }
+
+        /** Add one observation to the series.
+         *  @param x the observation
+         */
+        public void add( double x ) {
+            count = count + 1;
+            sum = sum + x;
+            filled = filled + 1;
+            if (filled < batch) return;
+            if (n == values.length) {
+                if (n < LIMIT) {
+                    values = Arrays.copyOf( values, 2 * n );
+                } else {
+                    merge();
+                }
+            }
+            values[n] = sum / batch;
+            n = n + 1;
+            sum = 0.0;
+            filled = 0;
+        }
+
+        // Merge neighbouring batches, halving how many are kept
+        private void merge() {
+            for (int i = 0; i < n / 2; i++) {
+                values[i] = (values[2 * i] + values[2 * i + 1]) / 2;
+            }
+            n = n / 2;
+            batch = 2 * batch;
+        }
+
+        /** How many observations have been added to this series.
+         *  @return the count
+         */
+        public long size() {
+            return count;
+        }
+
+        /** Find the end of the warm-up transient by the MSER-5 rule.
+         *  The batch means are grouped in fives and the truncation that
+         *  minimizes the standard error of the mean of what remains is
+         *  chosen, considering truncation of at most half the series.
+         *  @return the index of the first batch mean to keep
+         */
+        public int truncation() {
+            int m = n / MSER_GROUP;
+            if (m < 2) return 0;
+            // Sums of group means and their squares from each group on
+            double sum = 0.0;
+            double sumSquares = 0.0;
+            double[] suffix = new double[m + 1];
+            double[] suffixSquares = new double[m + 1];
+            for (int g = m - 1; g >= 0; g--) {
+                double y = 0.0;
+                for (int i = g * MSER_GROUP; i < (g + 1) * MSER_GROUP; i++) {
+                    y = y + values[i];
+                }
+                y = y / MSER_GROUP;
+                sum = sum + y;
+                sumSquares = sumSquares + y * y;
+                suffix[g] = sum;
+                suffixSquares[g] = sumSquares;
+            }
+            int best = 0;
+            double bestStat = Double.POSITIVE_INFINITY;
+            for (int d = 0; d <= m / 2; d++) {
+                int k = m - d;
+                double mean = suffix[d] / k;
+                double squaredError = suffixSquares[d] - k * mean * mean;
+                double stat = squaredError / ((double) k * k);
+                if (stat < bestStat) {
+                    bestStat = stat;
+                    best = d;
+                }
+            }
+            return best * MSER_GROUP;
+        }
+
+        /** Compute a confidence interval by the method of batch means.
+         *  The batch means after the truncation point are split into
+         *  BATCHES equal batches, any remainder is dropped from the start.
+         *  @param first the index of the first batch mean to use
+         *  @return the mean and the half width of its 95% confidence
+         *  interval, or null if there are too few observations
+         */
+        public double[] interval( int first ) {
+            int size = (n - first) / BATCHES;
+            if (size < MIN_BATCH_SIZE) return null;
+            int start = n - size * BATCHES;
+            double sum = 0.0;
+            double sumSquares = 0.0;
+            for (int b = 0; b < BATCHES; b++) {
+                double y = 0.0;
+                for (int i = start + b * size; i < start + (b + 1) * size; i++) {
+                    y = y + values[i];
+                }
+                y = y / size;
+                sum = sum + y;
+                sumSquares = sumSquares + y * y;
+            }
+            double mean = sum / BATCHES;
+            double variance
+                = (sumSquares - BATCHES * mean * mean) / (BATCHES - 1);
+            if (variance < 0.0) variance = 0.0;
+            return new double[] {
+                mean, T_QUANTILE * Math.sqrt( variance / BATCHES )
+            };
+        }
+
+        /** Is the mean of this series known to the requested precision.
+         *  @param relative the largest acceptable ratio of the confidence
+         *  interval half width to the mean
+         *  @return true if it is
+         */
+        public boolean precise( double relative ) {
+            double[] ci = interval( truncation() );
+            if (ci == null) return false;
+            return ci[1] <= relative * Math.abs( ci[0] );
+        }
+
+        /** Output what is known about this series.
+         */
+        public void report() {
+            int first = truncation();
+            double[] ci = interval( first );
+            if (ci == null) {
+                Errors.messages().println( "RoadNetwork: " + name + ": "
+                    + count + " observations, too few for an estimate"
+                );
+                return;
+            }
+            Errors.messages().printf(
+                "RoadNetwork: %s: %.6g +/- %.3g %s (95%%),"
+                + " warm-up %d of %d observations discarded%n",
+                name, ci[0], ci[1], units, (long) first * batch, count
+            );
+        }
+    }
+
+    // Group size for the MSER-5 rule
+    private static final int MSER_GROUP = 5;
+
+    // Number of batches for batch means and the matching 0.975 quantile
+    // of Student's t distribution with BATCHES - 1 degrees of freedom
+    private static final int BATCHES = 20;
+    private static final double T_QUANTILE = 2.093;
+
+    // Smallest batch worth computing a confidence interval from
+    private static final int MIN_BATCH_SIZE = 5;
+
+    // Most batch means kept per series, an even number
+    private static final int LIMIT = 1 << 16;
+
+    // Vehicles whose trip times are averaged into each batch at first
+    private static final int TRIP_BATCH = 100;
+
+    // The simulation these statistics are about
+    private final Simulator sim;
+
+    // Are statistics being gathered at all
+    private boolean enabled = false;
+
+    // Requested relative precision, or zero to run to the end
+    private double precision = 0.0;
+
+    // All the series being gathered
+    private final LinkedList <Series> all = new LinkedList <> ();
+
+    // Sink throughput is measured by counting arrivals in time bins
+    private final Series throughput
+    = new Series( "sink throughput", "vehicles per unit time", 1 );
+    private double binWidth = 1.0;
+    private double binEnd = 1.0;
+    private int binCount = 0;
+
+    // Time from entering the network to arriving at a sink, per vehicle
+    private final Series tripTime
+    = new Series( "trip time", "time units", TRIP_BATCH );
+
+    // When to next check whether the precision has been reached
+    private long nextCheck = 0;
+
+    /** Construct statistics that are not gathered until enabled.
+     *  @param sim the simulation they are about
+     */
+    public Statistics( Simulator sim ) {
+        this.sim = sim;
+    }
+
+    /** Start gathering statistics.
+     *  @param relative the relative precision at which to stop the
+     *  simulation, or zero to never stop it early
+     *  @param width the width of the time bins used to measure throughput
+     */
+    public void enable( double relative, double width ) {
+        enabled = true;
+        precision = relative;
+        binWidth = width;
+        binEnd = width;
+        all.add( throughput );
+        all.add( tripTime );
+    }
+
+    /** Are statistics being gathered.
+     *  @return true if they are
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    // Stop the simulation if every series is known precisely enough.
+    // Checking costs time proportional to the number of batch means kept,
+    // so it is done when the number of time bins has grown by a tenth.
+    private void check() {
+        long bins = throughput.size();
+        if ((precision <= 0.0) || (bins < nextCheck)) return;
+        nextCheck = bins + Math.max( bins / 10, BATCHES * MIN_BATCH_SIZE );
+        for (Series each: all) {
+            if (!each.precise( precision )) return;
+        }
+        sim.stop();
+    }
+
+    /** Record a vehicle arriving at a sink.
+     *  @param t the time it arrives
+     *  @param v the vehicle
+     */
+    public void sinkArrival( float t, int v ) {
+        if (!enabled) return;
+        tripTime.add( t - sim.vehicles.entryTime( v ) );
+        if (t >= binEnd) {
+            while (t >= binEnd) {
+                throughput.add( binCount / binWidth );
+                binCount = 0;
+                binEnd = binEnd + binWidth;
+            }
+            check();
+        }
+        binCount = binCount + 1;
+    }
+
+    /** Output the statistics, called after the simulation ends.
+     */
+    public void report() {
+        if (!enabled) return;
+        for (Series s: all) {
+            s.report();
+        }
+    }
+}
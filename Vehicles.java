@@ -0,0 +1,245 @@
+// Vehicles.java
+
+import java.util.Arrays;
+
+/** Vehicles.java
+ *  Table of all vehicles currently in the road network.
+ *  <p>
+ *  There may be many millions of vehicles in a large network, so they are
+ *  not objects.  Each vehicle is an int index into parallel arrays, one
+ *  per attribute.  Slots of vehicles that have left the network are kept
+ *  on a free list and reused, so the table only grows to the largest
+ *  number of vehicles that were ever in the network at once.  Each
+ *  simulator has a table of its own, emptied before each simulation.
+ *  @author Piotr Smietana
+ *  @version 2019-03-31
+ *  @see Intersection
+ *  @see Road
+ */
+public class Vehicles {
+
+    /** The vehicle number that means no vehicle.
+     */
+    public static final int NONE = -1;
+
+    /** First-in first-out queue of vehicles.
+     *  <p>
+     *  Queues are threaded through the table, so a vehicle may be in at
+     *  most one queue at a time and queueing allocates no memory.
+     *  @see Vehicles#newQueue
+     */
+    public class Queue {
+        private int head = NONE;
+        private int tail = NONE;
+        private int size = 0;
+
+        /** Is this queue empty.
+         *  @return true if it is
+         */
+        public boolean isEmpty() {
+            return head == NONE;
+        }
+
+        /** How many vehicles wait in this queue.
+         *  @return the count
+         */
+        public int size() {
+            return size;
+        }
+
+        /** Add a vehicle to the end of the queue.
+         *  @param v the vehicle
+         */
+        public void add( int v ) {
+            next[v] = NONE;
+            if (tail == NONE) {
+                head = v;
+            } else {
+                next[tail] = v;
+            }
+            tail = v;
+            size = size + 1;
+        }
+
+        /** Get the vehicle at the head of the queue without removing it.
+         *  @return the vehicle, or NONE if the queue is empty
+         */
+        public int first() {
+            return head;
+        }
+
+        /** Remove the vehicle at the head of the queue.
+         *  The queue must not be empty.
+         *  @return the vehicle
+         */
+        public int remove() {
+            int v = head;
+            head = next[v];
+            if (head == NONE) tail = NONE;
+            next[v] = NONE;
+            size = size - 1;
+            return v;
+        }
+    }
+
+    // Initial number of slots in the table
+    private static final int INITIAL = 1024;
+
+    // Time each vehicle entered the network
+    private float[] entryTime = new float[INITIAL];
+    // Time each vehicle arrived at the intersection it is now in
+    private float[] since = new float[INITIAL];
+    // Total time each vehicle has spent waiting at intersections
+    private float[] waited = new float[INITIAL];
+    // Number of the source intersection each vehicle came from
+    private int[] origin = new int[INITIAL];
+    // Number of roads each vehicle has entered
+    private int[] hops = new int[INITIAL];
+    // Next vehicle in the same queue, or in the free list
+    private int[] next = new int[INITIAL];
+
+    // Slots ever used, the head of the free list, and live vehicles
+    private int used = 0;
+    private int free = NONE;
+    private int live = 0;
+
+    /** Make a new empty queue of vehicles in this table.
+     *  @return the queue
+     */
+    public Queue newQueue() {
+        return new Queue();
+    }
+
+    /** Remove every vehicle, as before a simulation starts.
+     *  The table keeps its size, so it need not grow again.
+     */
+    public void reset() {
+        used = 0;
+        free = NONE;
+        live = 0;
+    }
+
+    // Make room for more vehicles by doubling every column
+    private void grow() {
+        int size = 2 * entryTime.length;
+        entryTime = Arrays.copyOf( entryTime, size );
+        since = Arrays.copyOf( since, size );
+        waited = Arrays.copyOf( waited, size );
+        origin = Arrays.copyOf( origin, size );
+        hops = Arrays.copyOf( hops, size );
+        next = Arrays.copyOf( next, size );
+    }
+
+    /** Create a new vehicle entering the network.
+     *  @param t the time the vehicle enters the network
+     *  @param source the number of the intersection it enters from
+     *  @return the new vehicle
+     */
+    public int create( float t, int source ) {
+        int v;
+        if (free != NONE) {
+            v = free;
+            free = next[v];
+        } else {
+            if (used == entryTime.length) grow();
+            v = used;
+            used = used + 1;
+        }
+        entryTime[v] = t;
+        since[v] = t;
+        waited[v] = 0.0F;
+        origin[v] = source;
+        hops[v] = 0;
+        next[v] = NONE;
+        live = live + 1;
+        return v;
+    }
+
+    /** Take over a vehicle that was simulated in another partition.
+     *  @param entered the time the vehicle entered the network
+     *  @param source the number of the intersection it entered from
+     *  @param roads the number of roads it has entered
+     *  @param wait the time it has spent waiting
+     *  @return the vehicle in this table
+     */
+    public int transfer(
+        float entered, int source, int roads, float wait
+    ) {
+        int v = create( entered, source );
+        hops[v] = roads;
+        waited[v] = wait;
+        return v;
+    }
+
+    /** Remove a vehicle that has left the network, freeing its slot.
+     *  @param v the vehicle
+     */
+    public void release( int v ) {
+        next[v] = free;
+        free = v;
+        live = live - 1;
+    }
+
+    /** How many vehicles are in the network.
+     *  @return the count
+     */
+    public int live() {
+        return live;
+    }
+
+    /** Record a vehicle entering a road.
+     *  @param v the vehicle
+     */
+    public void hop( int v ) {
+        hops[v] = hops[v] + 1;
+    }
+
+    /** Record a vehicle arriving at an intersection.
+     *  @param v the vehicle
+     *  @param t the time it arrives
+     */
+    public void arrive( int v, float t ) {
+        since[v] = t;
+    }
+
+    /** Record a vehicle starting to drive through an intersection.
+     *  The time since it arrived there was spent waiting.
+     *  @param v the vehicle
+     *  @param t the time it starts to drive through
+     */
+    public void proceed( int v, float t ) {
+        waited[v] = waited[v] + (t - since[v]);
+    }
+
+    /** Get the time a vehicle entered the network.
+     *  @param v the vehicle
+     *  @return the time
+     */
+    public float entryTime( int v ) {
+        return entryTime[v];
+    }
+
+    /** Get the total time a vehicle has waited at intersections.
+     *  @param v the vehicle
+     *  @return the time
+     */
+    public float waited( int v ) {
+        return waited[v];
+    }
+
+    /** Get the number of the intersection a vehicle came from.
+     *  @param v the vehicle
+     *  @return the intersection number
+     */
+    public int origin( int v ) {
+        return origin[v];
+    }
+
+    /** Get the number of roads a vehicle has entered.
+     *  @param v the vehicle
+     *  @return the count
+     */
+    public int hops( int v ) {
+        return hops[v];
+    }
+}